@@ -0,0 +1,109 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.pdekker.viraltyping.algo.consensus.SyntheticMapping.ErrorProfile;
+
+/**
+ * The calling pass of the consensus builder over the pileup of a whole synthetic genome, with conflicts annotated.
+ * The results go to a sink that only counts them, so the sequence builder of the Workbench is not part of the
+ * measurement. One operation is one reference position.
+ *
+ * @author pdekker
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConsensusCallerBenchmark {
+	private static final int MIN_COVERAGE = 10;
+	private static final double MIN_FREQUENCY = 0.2;
+	// symbols of the benchmark, A, C, G, T and N as in the DNA alphabet, the ambiguity symbols follow N
+	private static final String SYMBOLS = "ACGTNRYKMSWBDHV";
+	// IUPAC code per bit mask of the called bases (A = 1, C = 2, G = 4, T = 8)
+	private static final String IUPAC_CODES = "NACMGRSVTWYHKDBN";
+	private static final byte N = (byte) SYMBOLS.indexOf('N');
+
+	@Param({ "100", "1000", "20000" })
+	int depth;
+
+	// the generated benchmark code lives in another package, so the parameters are strings
+	@Param({ "ILLUMINA", "ONT" })
+	String profile;
+
+	@Param({ "VOTE", "AMBIGUOUS" })
+	String resolution;
+
+	private PileupStore store;
+	private CallingKernel.Resolution kernelResolution;
+	private byte[] iupac;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		store = SyntheticMapping.createPileup(SyntheticMapping.GENOME_LENGTH, depth, ErrorProfile.valueOf(profile),
+				42);
+		kernelResolution = CallingKernel.Resolution.valueOf(resolution);
+		iupac = new byte[IUPAC_CODES.length()];
+		for (int mask = 0; mask < iupac.length; mask++) {
+			iupac[mask] = (byte) SYMBOLS.indexOf(IUPAC_CODES.charAt(mask));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SyntheticMapping.GENOME_LENGTH)
+	public long call() {
+		final CountingSink sink = new CountingSink();
+		final CallingKernel kernel = new CallingKernel(MIN_FREQUENCY, MIN_COVERAGE, kernelResolution, iupac, N);
+		final ConsensusCaller caller = new ConsensusCaller(kernel, MIN_COVERAGE, true, null, true,
+				ConsensusCaller.DEFAULT_ASSEMBLY_FLANK, sink);
+		caller.accept(store);
+		caller.finish();
+		return sink.count + caller.getConflictCount() + caller.getNRuns().getTotalLength();
+	}
+
+	private static final class CountingSink implements ConsensusCaller.Sink {
+		private long count = 0;
+
+		@Override
+		public void addSymbols(byte[] symbols, int length) {
+			count += length + symbols[length - 1];
+		}
+
+		@Override
+		public void addConflict(int position, CallingKernel kernel) {
+			count += kernel.getPassingCount();
+		}
+
+		@Override
+		public void addInsertion(InsertionColumns columns, int from, int to, ConflictIndex records) {
+			count += to - from;
+		}
+
+		@Override
+		public void addLowCoverage(int start, int end, long coverage) {
+			count += end - start;
+		}
+
+		@Override
+		public void addBreakpointCluster(int start, int end) {
+			count += end - start;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.pdekker.viraltyping.algo.consensus.SyntheticMapping.ErrorProfile;
+
+/**
+ * Pileup of a synthetic read stream, the work the position handler of the consensus iterator does per column: every
+ * read covering the column is counted into the {@link PileupColumn}, optionally after the primer test of the primer
+ * scheme filter. The insertion columns are counted as well. One operation is one reference position.
+ *
+ * @author pdekker
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PileupColumnBenchmark {
+	static final int POSITIONS = 1000;
+	private static final int AMPLICON_LENGTH = 400;
+	private static final int AMPLICON_STEP = 350;
+	private static final int PRIMER_LENGTH = 22;
+
+	@Param({ "100", "1000", "20000" })
+	int depth;
+
+	// the generated benchmark code lives in another package, so the parameters are strings
+	@Param({ "ILLUMINA", "ONT" })
+	String profile;
+
+	private SyntheticMapping mapping;
+	private PrimerScheme.Index primers;
+	private PileupStore store;
+	private PileupColumn column;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mapping = new SyntheticMapping(POSITIONS, depth, ErrorProfile.valueOf(profile), 42);
+		primers = createPrimers();
+		store = new PileupStore(mapping.getColumnCount());
+		column = new PileupColumn(SyntheticMapping.GENOME_LENGTH, 0.2);
+	}
+
+	private static PrimerScheme.Index createPrimers() throws IOException {
+		final Path bed = Files.createTempFile("scheme", ".bed");
+		try {
+			try (Writer writer = Files.newBufferedWriter(bed, StandardCharsets.UTF_8)) {
+				for (int start = 0, amplicon = 1; start + AMPLICON_LENGTH <= POSITIONS; start += AMPLICON_STEP,
+						amplicon++) {
+					final int end = start + AMPLICON_LENGTH;
+					writer.write("ref\t" + start + "\t" + (start + PRIMER_LENGTH) + "\tbench_" + amplicon
+							+ "_LEFT\t1\t+\n");
+					writer.write("ref\t" + (end - PRIMER_LENGTH) + "\t" + end + "\tbench_" + amplicon
+							+ "_RIGHT\t1\t-\n");
+				}
+			}
+			return PrimerScheme.read(bed).getIndex("ref");
+		} finally {
+			Files.delete(bed);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POSITIONS)
+	public PileupStore pileup() {
+		return fill(false);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POSITIONS)
+	public PileupStore pileupPrimerMasked() {
+		return fill(true);
+	}
+
+	private PileupStore fill(boolean maskPrimers) {
+		final SyntheticMapping m = mapping;
+		store.clear();
+		for (int c = 0; c < m.getColumnCount(); c++) {
+			final int position = m.columnPositions[c];
+			final boolean insertion = m.isInsertion(c);
+			final int row = store.addRow(position);
+			column.start(store, row, position);
+			for (int entry = m.offsets[c]; entry < m.offsets[c + 1]; entry++) {
+				final int read = m.entryReads[entry];
+				if (maskPrimers && primers.isPrimer(position, m.readStarts[read] - m.clippedBefore[read],
+						m.readEnds[read] + m.clippedAfter[read])) {
+					continue;
+				}
+				final byte symbol = m.entrySymbols[entry];
+				if (symbol == SyntheticMapping.GAP) {
+					column.addGap(m.reverse[read]);
+				} else {
+					final int unalignedBefore = !insertion && position == m.readStarts[read] ? m.clippedBefore[read]
+							: 0;
+					final int unalignedAfter = !insertion && position == m.readEnds[read] - 1 ? m.clippedAfter[read]
+							: 0;
+					column.addBase(symbol, m.reverse[read], unalignedBefore, unalignedAfter);
+				}
+			}
+			column.finish();
+		}
+		return store;
+	}
+}
@@ -0,0 +1,108 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.pdekker.viraltyping.algo.consensus.SyntheticMapping.ErrorProfile;
+
+/**
+ * The region test of the quality filter on a synthetic read stream: for every read in every column the qualities in
+ * the region around the base are summed, either directly or from the prefix sums of the read kept in
+ * {@link ActiveReads}, which includes looking up the read in every column. One operation is one reference position.
+ * The results give {@link ActiveReads#MIN_PREFIX_SUM_RADIUS}.
+ *
+ * @author pdekker
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class QualityWindowBenchmark {
+	static final int POSITIONS = 1000;
+
+	@Param({ "100", "1000" })
+	int depth;
+
+	// the generated benchmark code lives in another package, so the parameters are strings
+	@Param({ "ILLUMINA", "ONT" })
+	String profile;
+
+	@Param({ "5", "20", "50", "200" })
+	int radius;
+
+	private SyntheticMapping mapping;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mapping = new SyntheticMapping(POSITIONS, depth, ErrorProfile.valueOf(profile), 42);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POSITIONS)
+	public long direct() {
+		final SyntheticMapping m = mapping;
+		long total = 0;
+		for (int c = 0; c < m.getColumnCount(); c++) {
+			for (int entry = m.offsets[c]; entry < m.offsets[c + 1]; entry++) {
+				final int read = m.entryReads[entry];
+				final int start = getStart(m, read, m.entryReadPositions[entry]);
+				total += ActiveReads.sumQualities(m.qualities[read], start, getEnd(m, read, start));
+			}
+		}
+		return total;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POSITIONS)
+	public long prefixSums() {
+		final SyntheticMapping m = mapping;
+		final ActiveReads reads = new ActiveReads();
+		long total = 0;
+		for (int c = 0; c < m.getColumnCount(); c++) {
+			reads.startPosition();
+			for (int entry = m.offsets[c]; entry < m.offsets[c + 1]; entry++) {
+				final int read = m.entryReads[entry];
+				final byte[] qualities = m.qualities[read];
+				final int readPosition = m.entryReadPositions[entry];
+				final ActiveReads.Read state = reads.get(qualities, m.getSegmentStart(read), m.getSegmentEnd(read),
+						m.reverse[read], readPosition);
+				final int start = getStart(m, read, readPosition);
+				final int end = getEnd(m, read, start);
+				total += state == null || !state.isContinued() ? ActiveReads.sumQualities(qualities, start, end)
+						: state.sumQualities(qualities, start, end);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return the start of the region around the read position, shifted into the segment like the quality filter
+	 *         does
+	 */
+	private int getStart(SyntheticMapping m, int read, int readPosition) {
+		final int segmentStart = m.getSegmentStart(read);
+		final int segmentEnd = m.getSegmentEnd(read);
+		final int start = Math.min(readPosition - radius, segmentEnd - 2 * radius - 1);
+		return Math.max(segmentStart, start);
+	}
+
+	private int getEnd(SyntheticMapping m, int read, int start) {
+		return Math.min(m.getSegmentEnd(read), start + 2 * radius + 1);
+	}
+}
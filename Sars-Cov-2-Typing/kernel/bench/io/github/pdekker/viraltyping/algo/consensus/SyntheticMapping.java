@@ -0,0 +1,291 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic read mappings for the benchmarks. The reads are stored per column in the order the match list iterator
+ * hands them to the position handler: for every reference position, and every insertion column after it, the reads
+ * covering the column with the symbol they have there. Symbols are alphabet indices, A, C, G, T are 0-3, 4 is N and
+ * {@link #GAP} is a deletion, or no inserted base in an insertion column.
+ *
+ * @author pdekker
+ *
+ */
+final class SyntheticMapping {
+	static final byte GAP = -1;
+	static final int GENOME_LENGTH = 29_903;
+	private static final int[] NO_INSERTIONS = new int[0];
+
+	/**
+	 * Error profiles of the sequencing platforms, rates are per base.
+	 */
+	enum ErrorProfile {
+		ILLUMINA(150, 0.002, 0.0002, 0.0002, 0.0005, 0.01, 35),
+		ONT(400, 0.03, 0.03, 0.01, 0.002, 0.05, 18);
+
+		final int readLength;
+		final double substitution;
+		final double deletion;
+		final double insertion;
+		final double unknown;
+		final double clipped;
+		final int quality;
+
+		private ErrorProfile(int readLength, double substitution, double deletion, double insertion, double unknown,
+				double clipped, int quality) {
+			this.readLength = readLength;
+			this.substitution = substitution;
+			this.deletion = deletion;
+			this.insertion = insertion;
+			this.unknown = unknown;
+			this.clipped = clipped;
+			this.quality = quality;
+		}
+	}
+
+	private final int length;
+	// reads, the start and exclusive end are aligned positions
+	final int[] readStarts;
+	final int[] readEnds;
+	final int[] clippedBefore;
+	final int[] clippedAfter;
+	final boolean[] reverse;
+	// qualities of all bases of a read, the aligned segment is [clippedBefore, length - clippedAfter)
+	final byte[][] qualities;
+	// columns: the reads of column c are offsets[c] until offsets[c + 1], an insertion column has the position of
+	// the column before it
+	final int[] columnPositions;
+	final int[] offsets;
+	final int[] entryReads;
+	final byte[] entrySymbols;
+	final int[] entryReadPositions;
+
+	/**
+	 * Simulates reads of the profile with start positions spread evenly over [0, length), so the inner positions are
+	 * covered by depth reads on average. Besides the insertion errors about one in 500 positions is followed by an
+	 * insertion of a third of the reads.
+	 */
+	SyntheticMapping(int length, int depth, ErrorProfile profile, long seed) {
+		this.length = length;
+		final Random random = new Random(seed);
+		final byte[] reference = createReference(length, random);
+		final boolean[] mixedInsertion = new boolean[length];
+		for (int p = 0; p < length; p++) {
+			mixedInsertion[p] = random.nextInt(500) == 0;
+		}
+		final int reads = (int) ((long) depth * length / profile.readLength);
+		readStarts = new int[reads];
+		readEnds = new int[reads];
+		clippedBefore = new int[reads];
+		clippedAfter = new int[reads];
+		reverse = new boolean[reads];
+		qualities = new byte[reads][];
+		// positions after which a read has an inserted base
+		final int[][] insertions = new int[reads][];
+		final boolean[] inserted = new boolean[length];
+		final int[] baseEntries = new int[length];
+		final int[] insertionEntries = new int[length];
+		for (int read = 0; read < reads; read++) {
+			final int start = (int) ((long) read * length / reads);
+			readStarts[read] = start;
+			readEnds[read] = Math.min(length, start + profile.readLength);
+			reverse[read] = random.nextBoolean();
+			clippedBefore[read] = random.nextDouble() < profile.clipped ? 6 + random.nextInt(25) : 0;
+			clippedAfter[read] = random.nextDouble() < profile.clipped ? 6 + random.nextInt(25) : 0;
+			int[] readInsertions = NO_INSERTIONS;
+			int count = 0;
+			for (int p = start; p < readEnds[read]; p++) {
+				baseEntries[p]++;
+				// no insertion after the last aligned base
+				if (p < readEnds[read] - 1) {
+					insertionEntries[p]++;
+					if (random.nextDouble() < profile.insertion || mixedInsertion[p] && random.nextInt(3) == 0) {
+						if (count == readInsertions.length) {
+							readInsertions = Arrays.copyOf(readInsertions, Math.max(4, count * 2));
+						}
+						readInsertions[count++] = p;
+						inserted[p] = true;
+					}
+				}
+			}
+			insertions[read] = Arrays.copyOf(readInsertions, count);
+			qualities[read] = createQualities(
+					clippedBefore[read] + readEnds[read] - start + count + clippedAfter[read], profile, random);
+		}
+
+		// the base column of a position, followed by its insertion column
+		final int[] baseColumns = new int[length];
+		int columns = 0;
+		for (int p = 0; p < length; p++) {
+			baseColumns[p] = columns;
+			columns += inserted[p] ? 2 : 1;
+		}
+		columnPositions = new int[columns];
+		offsets = new int[columns + 1];
+		for (int p = 0; p < length; p++) {
+			final int column = baseColumns[p];
+			columnPositions[column] = p;
+			offsets[column + 1] = baseEntries[p];
+			if (inserted[p]) {
+				columnPositions[column + 1] = p;
+				offsets[column + 2] = insertionEntries[p];
+			}
+		}
+		for (int c = 0; c < columns; c++) {
+			offsets[c + 1] += offsets[c];
+		}
+		entryReads = new int[offsets[columns]];
+		entrySymbols = new byte[offsets[columns]];
+		entryReadPositions = new int[offsets[columns]];
+		final int[] next = Arrays.copyOf(offsets, columns);
+		for (int read = 0; read < reads; read++) {
+			int readPosition = clippedBefore[read];
+			int insertion = 0;
+			for (int p = readStarts[read]; p < readEnds[read]; p++) {
+				final byte symbol = createSymbol(reference[p], profile, random);
+				int entry = next[baseColumns[p]]++;
+				entryReads[entry] = read;
+				entrySymbols[entry] = symbol;
+				entryReadPositions[entry] = readPosition;
+				if (symbol != GAP) {
+					readPosition++;
+				}
+				if (inserted[p] && p < readEnds[read] - 1) {
+					entry = next[baseColumns[p] + 1]++;
+					entryReads[entry] = read;
+					entryReadPositions[entry] = readPosition;
+					if (insertion < insertions[read].length && insertions[read][insertion] == p) {
+						entrySymbols[entry] = (byte) random.nextInt(4);
+						readPosition++;
+						insertion++;
+					} else {
+						entrySymbols[entry] = GAP;
+					}
+				}
+			}
+		}
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	int getColumnCount() {
+		return columnPositions.length;
+	}
+
+	int getEntryCount() {
+		return entryReads.length;
+	}
+
+	/**
+	 * @return true for an insertion column, which follows the column of its reference position
+	 */
+	boolean isInsertion(int column) {
+		return column > 0 && columnPositions[column - 1] == columnPositions[column];
+	}
+
+	int getSegmentStart(int read) {
+		return clippedBefore[read];
+	}
+
+	int getSegmentEnd(int read) {
+		return qualities[read].length - clippedAfter[read];
+	}
+
+	/**
+	 * Creates the pileup of a reference of the given length without simulating the single reads, the counts per
+	 * position are drawn around the expected number of errors. About one in 1000 positions is a mixed position, the
+	 * insertion errors of the profile get an insertion column and about one in 1000 positions is followed by an
+	 * insertion of a third of the reads, which is a conflict in the gap-called insertion column.
+	 */
+	static PileupStore createPileup(int length, int depth, ErrorProfile profile, long seed) {
+		final Random random = new Random(seed);
+		final byte[] reference = createReference(length, random);
+		final PileupStore store = new PileupStore(length + (int) (length * profile.insertion * 2));
+		final int[] counts = new int[PileupStore.SYMBOLS];
+		final int[] forCounts = new int[PileupStore.SYMBOLS];
+		final int[] revCounts = new int[PileupStore.SYMBOLS];
+		for (int position = 0; position < length; position++) {
+			final int coverage = draw(depth, random);
+			Arrays.fill(counts, 0);
+			final int deletions = draw(coverage * profile.deletion, random);
+			final int unknown = draw(coverage * profile.unknown, random);
+			final int substitutions = draw(coverage * profile.substitution, random);
+			final int mixed = random.nextInt(1000) == 0 ? coverage / 3 : 0;
+			int remaining = coverage;
+			remaining -= take(counts, 0, deletions, remaining);
+			remaining -= take(counts, 5, unknown, remaining);
+			remaining -= take(counts, 1 + (reference[position] + 1 + random.nextInt(3)) % 4, substitutions + mixed,
+					remaining);
+			counts[1 + reference[position]] += remaining;
+			split(counts, forCounts, revCounts, random);
+			final boolean breakpoint = random.nextDouble() < profile.clipped / 100;
+			store.add(position, forCounts, revCounts, breakpoint, false);
+
+			final boolean mixedInsertion = random.nextInt(1000) == 0;
+			if (mixedInsertion || random.nextDouble() < profile.insertion * 10) {
+				Arrays.fill(counts, 0);
+				final int inserted = mixedInsertion ? coverage / 3
+						: Math.min(draw(coverage * profile.insertion * 10, random), coverage);
+				counts[1 + random.nextInt(4)] = inserted;
+				counts[0] = coverage - inserted;
+				split(counts, forCounts, revCounts, random);
+				store.add(position, forCounts, revCounts, false, false);
+			}
+		}
+		return store;
+	}
+
+	private static byte[] createReference(int length, Random random) {
+		final byte[] reference = new byte[length];
+		for (int p = 0; p < length; p++) {
+			reference[p] = (byte) random.nextInt(4);
+		}
+		return reference;
+	}
+
+	/**
+	 * @return Phred qualities around the quality of the profile, with a drop to 2 for one in 100 bases
+	 */
+	private static byte[] createQualities(int length, ErrorProfile profile, Random random) {
+		final byte[] qualities = new byte[length];
+		for (int i = 0; i < length; i++) {
+			qualities[i] = random.nextInt(100) == 0 ? 2 : (byte) (profile.quality - 5 + random.nextInt(11));
+		}
+		return qualities;
+	}
+
+	private static byte createSymbol(byte base, ErrorProfile profile, Random random) {
+		final double r = random.nextDouble();
+		if (r < profile.deletion) {
+			return GAP;
+		} else if (r < profile.deletion + profile.unknown) {
+			return 4;
+		} else if (r < profile.deletion + profile.unknown + profile.substitution) {
+			return (byte) ((base + 1 + random.nextInt(3)) % 4);
+		}
+		return base;
+	}
+
+	/**
+	 * @return a count around the mean, the normal approximation of the Poisson distribution
+	 */
+	private static int draw(double mean, Random random) {
+		return Math.max(0, (int) Math.round(mean + random.nextGaussian() * Math.sqrt(mean)));
+	}
+
+	private static int take(int[] counts, int symbol, int count, int remaining) {
+		final int taken = Math.min(count, remaining);
+		counts[symbol] += taken;
+		return taken;
+	}
+
+	private static void split(int[] counts, int[] forCounts, int[] revCounts, Random random) {
+		for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+			forCounts[symbol] = counts[symbol] == 0 ? 0 : random.nextInt(counts[symbol] + 1);
+			revCounts[symbol] = counts[symbol] - forCounts[symbol];
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * State per read that is kept while the read continues in the next column of the iteration. The iteration doesn't
+ * expose the read itself, so a read is recognized by its quality array and the state is only continued when the
+ * segment and strand are the same and the read moved at most one base since the previous column. Anything else
+ * starts a new state, so a quality array that is reused for another read never gets the state of the earlier read.
+ * When two reads of one column share a quality array the reads can't be told apart, neither gets a state in that
+ * column.
+ *
+ * @author pdekker
+ *
+ */
+final class ActiveReads {
+	/**
+	 * Smallest quality region radius for which the prefix sums of a read are faster than summing the region directly,
+	 * the lookup of the read in every column included. Measured on simulated Illumina and ONT reads: up to radius 20
+	 * the direct sum is two to three times faster, around 50 both are even and at 200 the prefix sums are up to four
+	 * times faster.
+	 */
+	static final int MIN_PREFIX_SUM_RADIUS = 100;
+
+	// marks a quality array shared by more than one read of the current column
+	private static final Read SHARED = new Read();
+
+	static final class Read {
+		private int segmentStart;
+		private int segmentEnd;
+		private boolean reverse;
+		private int readPosition;
+		private boolean continued;
+		private int[] qualitySums = new int[0];
+		private boolean hasQualitySums;
+
+		// filled by the filters
+		int leftPrimerEnd;
+		int referenceEnd;
+		int rightPrimerStart;
+
+		private boolean continues(int segmentStart, int segmentEnd, boolean reverse, int readPosition) {
+			return this.segmentStart == segmentStart && this.segmentEnd == segmentEnd && this.reverse == reverse
+					&& Math.abs(readPosition - this.readPosition) <= 1;
+		}
+
+		private void start(int segmentStart, int segmentEnd, boolean reverse) {
+			this.segmentStart = segmentStart;
+			this.segmentEnd = segmentEnd;
+			this.reverse = reverse;
+			continued = false;
+			hasQualitySums = false;
+		}
+
+		/**
+		 * @return false for the first column the read is seen in
+		 */
+		boolean isContinued() {
+			return continued;
+		}
+
+		/**
+		 * @return the sum of the qualities from start until end, from prefix sums over the read that are built the
+		 *         first time
+		 */
+		int sumQualities(byte[] qualities, int start, int end) {
+			if (!hasQualitySums) {
+				if (qualitySums.length <= qualities.length) {
+					qualitySums = new int[qualities.length + 1];
+				}
+				for (int i = 0; i < qualities.length; i++) {
+					qualitySums[i + 1] = qualitySums[i] + qualities[i];
+				}
+				hasQualitySums = true;
+			}
+			return qualitySums[end] - qualitySums[start];
+		}
+	}
+
+	// reads of the current and the previous column, the maps are swapped at every column
+	private Map<byte[], Read> current = new IdentityHashMap<>();
+	private Map<byte[], Read> previous = new IdentityHashMap<>();
+	private final ArrayDeque<Read> unused = new ArrayDeque<>();
+	private long unrecognized = 0;
+
+	/**
+	 * @return the sum of the qualities from start until end
+	 */
+	static int sumQualities(byte[] qualities, int start, int end) {
+		int total = 0;
+		for (int i = start; i < end; i++) {
+			total += qualities[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Called before the reads of a new column are handled, reads not seen in the previous column are done.
+	 */
+	void startPosition() {
+		for (final Read read : previous.values()) {
+			if (read != SHARED) {
+				unused.push(read);
+			}
+		}
+		previous.clear();
+		final Map<byte[], Read> done = previous;
+		previous = current;
+		current = done;
+	}
+
+	/**
+	 * @return the state of the read, null when the read can't be recognized
+	 */
+	Read get(byte[] qualities, int segmentStart, int segmentEnd, boolean reverse, int readPosition) {
+		if (qualities == null) {
+			unrecognized++;
+			return null;
+		}
+		Read read = previous.remove(qualities);
+		if (read != null && read != SHARED && read.continues(segmentStart, segmentEnd, reverse, readPosition)) {
+			read.continued = true;
+		} else {
+			if (read == null || read == SHARED) {
+				read = unused.isEmpty() ? new Read() : unused.pop();
+			}
+			read.start(segmentStart, segmentEnd, reverse);
+		}
+		read.readPosition = readPosition;
+		final Read other = current.put(qualities, read);
+		if (other != null) {
+			// the read seen first already has its state for this column, from the next column on both start over
+			current.put(qualities, SHARED);
+			unused.push(read);
+			if (other != SHARED) {
+				unused.push(other);
+			}
+			unrecognized++;
+			return null;
+		}
+		return read;
+	}
+
+	/**
+	 * @return the number of lookups that returned no state
+	 */
+	long getUnrecognizedCount() {
+		return unrecognized;
+	}
+}
@@ -0,0 +1,119 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * Depth per amplicon of a primer scheme, collected from the coverage of the called positions so the reads are not
+ * read again. Only the insert between the primers of an amplicon is used. Positions are reference positions and are
+ * added in order, insertion columns (repeated positions) are skipped. An amplicon drops out when its mean depth is
+ * below the minimum coverage.
+ *
+ * @author pdekker
+ *
+ */
+final class AmpliconDepth {
+	private final PrimerScheme.Index amplicons;
+	private final int minCoverage;
+	private final long[] sums;
+	private final int[] mins;
+	private final int[] covered;
+	private final int[] seen;
+
+	private int first = 0;
+	private int lastPosition = Integer.MIN_VALUE;
+
+	AmpliconDepth(PrimerScheme.Index amplicons, int minCoverage) {
+		this.amplicons = amplicons;
+		this.minCoverage = minCoverage;
+		final int count = amplicons.getAmpliconCount();
+		sums = new long[count];
+		mins = new int[count];
+		covered = new int[count];
+		seen = new int[count];
+		Arrays.fill(mins, Integer.MAX_VALUE);
+	}
+
+	void add(int position, int coverage) {
+		if (position <= lastPosition) {
+			return;
+		}
+		lastPosition = position;
+		final int count = sums.length;
+		while (first < count && amplicons.getAmpliconEnd(first) <= position) {
+			first++;
+		}
+		for (int a = first; a < count && amplicons.getAmpliconStart(a) <= position; a++) {
+			if (position < amplicons.getAmpliconEnd(a)) {
+				sums[a] += coverage;
+				mins[a] = Math.min(mins[a], coverage);
+				seen[a]++;
+				if (coverage >= minCoverage) {
+					covered[a]++;
+				}
+			}
+		}
+	}
+
+	int size() {
+		return sums.length;
+	}
+
+	String getName(int amplicon) {
+		return amplicons.getAmpliconName(amplicon);
+	}
+
+	int getStart(int amplicon) {
+		return amplicons.getAmpliconStart(amplicon);
+	}
+
+	int getEnd(int amplicon) {
+		return amplicons.getAmpliconEnd(amplicon);
+	}
+
+	private int getLength(int amplicon) {
+		return amplicons.getAmpliconEnd(amplicon) - amplicons.getAmpliconStart(amplicon);
+	}
+
+	/**
+	 * @return mean depth, positions that were not called have depth 0
+	 */
+	double getMeanDepth(int amplicon) {
+		return (double) sums[amplicon] / getLength(amplicon);
+	}
+
+	int getMinDepth(int amplicon) {
+		return seen[amplicon] < getLength(amplicon) ? 0 : mins[amplicon];
+	}
+
+	/**
+	 * @return fraction of the insert with at least the minimum coverage
+	 */
+	double getBreadth(int amplicon) {
+		return (double) covered[amplicon] / getLength(amplicon);
+	}
+
+	boolean isDropout(int amplicon) {
+		return getMeanDepth(amplicon) < minCoverage;
+	}
+
+	int getDropoutCount() {
+		int dropouts = 0;
+		for (int a = 0; a < sums.length; a++) {
+			if (isDropout(a)) {
+				dropouts++;
+			}
+		}
+		return dropouts;
+	}
+
+	/**
+	 * @return the rounded mean depth of every amplicon in scheme order
+	 */
+	int[] getMeanDepths() {
+		final int[] depths = new int[sums.length];
+		for (int a = 0; a < sums.length; a++) {
+			depths[a] = (int) Math.round(getMeanDepth(a));
+		}
+		return depths;
+	}
+}
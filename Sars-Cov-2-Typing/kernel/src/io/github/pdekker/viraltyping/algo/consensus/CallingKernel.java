@@ -0,0 +1,156 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+/**
+ * Allocation free variant calling for one row of a pileup ({@link PileupRows}). The symbols passing the frequency
+ * threshold are kept as a bitmask (bit 0 -> gap, bits 1-4 -> A, C, G, T) with their counts in primitive slots. The
+ * gap/vote decision and the consensus symbol are determined in the same scan. The kernel is reused for every position,
+ * the result of the last {@link #call(PileupRows, int)} is available through the getters.
+ *
+ * @author pdekker
+ *
+ */
+final class CallingKernel {
+	static final int CALLED_SYMBOLS = 5; // 0 -> gap 1,2,3,4 -> symbol, N (5) is never called
+	static final byte GAP = (byte) -1;
+
+	/**
+	 * What is called when more than one symbol passes the frequency threshold.
+	 */
+	enum Resolution {
+		/** the most common symbol */
+		VOTE,
+		/** N */
+		UNKNOWN,
+		/** the ambiguity symbol of the passing nucleotides */
+		AMBIGUOUS
+	}
+
+	private final double minFrequency;
+	private final int minCoverage;
+	private final Resolution resolution;
+	private final byte[] iupacTable;
+	private final byte n;
+
+	private final int[] counts = new int[CALLED_SYMBOLS];
+	private int mask;
+	private int passing;
+	private int coverage;
+	private boolean gap;
+	private byte consensus;
+
+	/**
+	 * @param iupacTable ambiguity symbol for every combination of A, C, G, T, indexed by the bitmask of the
+	 *                   nucleotides (bit 0 -> A .. bit 3 -> T)
+	 * @param n          symbol index of N
+	 */
+	CallingKernel(double minFrequency, int minCoverage, Resolution resolution, byte[] iupacTable, byte n) {
+		this.minFrequency = minFrequency;
+		this.minCoverage = minCoverage;
+		this.resolution = resolution;
+		this.iupacTable = iupacTable;
+		this.n = n;
+	}
+
+	void call(PileupRows store, int row) {
+		mask = 0;
+		passing = 0;
+		gap = false;
+		consensus = n;
+		coverage = store.getCoverage(row);
+		if (coverage < minCoverage) {
+			return; // too low coverage
+		}
+		final int minCount = (int) (coverage * minFrequency);
+		int best = -1;
+		int bestCount = -1;
+		for (int i = 0; i < CALLED_SYMBOLS; i++) {
+			final int c = store.getCount(row, i);
+			counts[i] = c;
+			if (c > minCount) {
+				mask |= 1 << i;
+				passing++;
+				if (bestCount < c) {
+					best = i;
+					bestCount = c;
+				}
+			}
+		}
+		if (passing == 0) {
+			return;
+		}
+		if (passing == 1) {
+			gap = best == 0;
+			consensus = toSymbol(best);
+			return;
+		}
+		switch (resolution) {
+		case AMBIGUOUS:
+			consensus = iupacTable[mask >> 1]; // gaps are ignored
+			break;
+		case UNKNOWN:
+			consensus = n;
+			break;
+		case VOTE:
+			gap = best == 0;
+			consensus = toSymbol(best);
+			break;
+		default:
+			throw new AssertionError("Enum missing");
+		}
+	}
+
+	private static byte toSymbol(int symbol) {
+		return (byte) (symbol - 1);
+	}
+
+	/**
+	 * @return true when the last called position will not be part of the consensus
+	 */
+	boolean isGap() {
+		return gap;
+	}
+
+	/**
+	 * @return true when more than one symbol passed the frequency threshold
+	 */
+	boolean isConflict() {
+		return passing > 1;
+	}
+
+	byte getConsensus() {
+		return consensus;
+	}
+
+	/**
+	 * @return true when the last called position is an N
+	 */
+	boolean isUnknown() {
+		return consensus == n;
+	}
+
+	int getCoverage() {
+		return coverage;
+	}
+
+	int getPassingCount() {
+		return passing;
+	}
+
+	/**
+	 * @return true when symbol (0 -> gap 1,2,3,4 -> A, C, G, T) passed the frequency threshold
+	 */
+	boolean isPassing(int symbol) {
+		return (mask & 1 << symbol) != 0;
+	}
+
+	int getCount(int symbol) {
+		return counts[symbol];
+	}
+
+	/**
+	 * @return the symbol index in the alphabet for the called symbol (0 -> gap 1,2,3,4 -> A, C, G, T)
+	 */
+	static byte getSymbol(int symbol) {
+		return toSymbol(symbol);
+	}
+}
@@ -0,0 +1,168 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * The alleles of the conflicts in a consensus, one record per allele that differs from the called symbol. Records are
+ * kept in flat primitive arrays in the order they were called. Like the {@link NRunIndex} the positions are kept up to
+ * date when the consensus is patched or trimmed, so the records can be turned into variants of the final consensus
+ * without reading the conflict annotations back.
+ *
+ * @author pdekker
+ *
+ */
+final class ConflictIndex {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] positions = new int[INITIAL_CAPACITY];
+	private byte[] refs = new byte[INITIAL_CAPACITY];
+	private int[] alleleStarts = new int[INITIAL_CAPACITY];
+	private int[] alleleLengths = new int[INITIAL_CAPACITY];
+	private int[] counts = new int[INITIAL_CAPACITY];
+	private int[] coverages = new int[INITIAL_CAPACITY];
+	private double[] frequencies = new double[INITIAL_CAPACITY];
+	private byte[] alleles = new byte[INITIAL_CAPACITY];
+	private int alleleSize = 0;
+	private int size = 0;
+
+	/**
+	 * Adds a substitution or deletion of the called symbol at the position.
+	 *
+	 * @param allele symbol of the allele, {@link CallingKernel#GAP} for a deletion
+	 */
+	void addSubstitution(int position, byte ref, byte allele, int count, int coverage) {
+		if (allele == CallingKernel.GAP) {
+			add(position, ref, null, 0, count, coverage);
+		} else {
+			add(position, ref, new byte[] { allele }, 1, count, coverage);
+		}
+	}
+
+	/**
+	 * Adds an insertion of length symbols before the position.
+	 */
+	void addInsertion(int position, byte[] symbols, int length, int count, int coverage) {
+		add(position, CallingKernel.GAP, symbols, length, count, coverage);
+	}
+
+	private void add(int position, byte ref, byte[] symbols, int length, int count, int coverage) {
+		ensureCapacity(size + 1);
+		if (alleleSize + length > alleles.length) {
+			alleles = Arrays.copyOf(alleles, Math.max(alleleSize + length, alleles.length * 2));
+		}
+		if (length > 0) {
+			System.arraycopy(symbols, 0, alleles, alleleSize, length);
+		}
+		positions[size] = position;
+		refs[size] = ref;
+		alleleStarts[size] = alleleSize;
+		alleleLengths[size] = length;
+		counts[size] = count;
+		coverages[size] = coverage;
+		frequencies[size] = coverage == 0 ? 0 : 100.0 * count / coverage;
+		alleleSize += length;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int getPosition(int record) {
+		return positions[record];
+	}
+
+	boolean isInsertion(int record) {
+		return refs[record] == CallingKernel.GAP;
+	}
+
+	/**
+	 * @return the called symbol, {@link CallingKernel#GAP} for an insertion
+	 */
+	byte getRef(int record) {
+		return refs[record];
+	}
+
+	/**
+	 * @return the symbols of the allele, null for a deletion
+	 */
+	byte[] getAllele(int record) {
+		if (alleleLengths[record] == 0) {
+			return null;
+		}
+		return Arrays.copyOfRange(alleles, alleleStarts[record], alleleStarts[record] + alleleLengths[record]);
+	}
+
+	int getCount(int record) {
+		return counts[record];
+	}
+
+	int getCoverage(int record) {
+		return coverages[record];
+	}
+
+	/**
+	 * @return frequency of the allele in percent
+	 */
+	double getFrequency(int record) {
+		return frequencies[record];
+	}
+
+	/**
+	 * Updates the records for the replacement of [start, end) by replacementLength symbols. The conflicts in the
+	 * replaced interval are dropped.
+	 */
+	void replace(int start, int end, int replacementLength) {
+		final int shift = replacementLength - (end - start);
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (positions[i] < start) {
+				move(i, kept++, 0);
+			} else if (positions[i] >= end) {
+				move(i, kept++, shift);
+			}
+		}
+		size = kept;
+	}
+
+	/**
+	 * Updates the records for trimming the consensus to [start, end).
+	 */
+	void trim(int start, int end) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (start <= positions[i] && positions[i] < end) {
+				move(i, kept++, -start);
+			}
+		}
+		size = kept;
+	}
+
+	private void move(int from, int to, int shift) {
+		positions[to] = positions[from] + shift;
+		refs[to] = refs[from];
+		alleleStarts[to] = alleleStarts[from];
+		alleleLengths[to] = alleleLengths[from];
+		counts[to] = counts[from];
+		coverages[to] = coverages[from];
+		frequencies[to] = frequencies[from];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= positions.length) {
+			return;
+		}
+		final int newCapacity = Math.max(capacity, positions.length * 2);
+		positions = Arrays.copyOf(positions, newCapacity);
+		refs = Arrays.copyOf(refs, newCapacity);
+		alleleStarts = Arrays.copyOf(alleleStarts, newCapacity);
+		alleleLengths = Arrays.copyOf(alleleLengths, newCapacity);
+		counts = Arrays.copyOf(counts, newCapacity);
+		coverages = Arrays.copyOf(coverages, newCapacity);
+		frequencies = Arrays.copyOf(frequencies, newCapacity);
+	}
+}
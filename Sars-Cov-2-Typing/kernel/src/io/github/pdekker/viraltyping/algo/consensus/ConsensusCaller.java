@@ -0,0 +1,248 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * Single calling pass over the rows of one or more pileups ({@link PileupRows}) in position order. Every row is called
+ * once by the {@link CallingKernel}; the consensus symbols, conflicts, low coverage regions and breakpoint clusters are
+ * handed to a {@link Sink}, the depth distribution, N runs, conflict alleles and amplicon depths are kept here.
+ * Breakpoints close to the end of the consensus are ignored, because the total number of rows is not known up front a
+ * breakpoint is kept in a small ring buffer until enough rows have followed it.
+ *
+ * @author pdekker
+ *
+ */
+final class ConsensusCaller {
+	static final int BUFFER_SIZE = 10_000;
+	static final int IGNORE_FAILURES_CLOSE_TO_END = 25;
+	/**
+	 * Default of the number of consensus positions added at both sides of a breakpoint cluster, about the length of
+	 * an Illumina read. The reads of the local assembly have to reach over the breakpoints into the consensus at both
+	 * sides, else the contig can't be placed.
+	 */
+	static final int DEFAULT_ASSEMBLY_FLANK = 250;
+
+	/**
+	 * Receives the results of the calling pass, positions are consensus positions.
+	 */
+	interface Sink {
+		/**
+		 * The next block of consensus symbols, the array is reused after the call.
+		 */
+		void addSymbols(byte[] symbols, int length);
+
+		/**
+		 * A called position where more than one symbol passed, only when conflicts are annotated.
+		 */
+		void addConflict(int position, CallingKernel kernel);
+
+		/**
+		 * The insertion columns [from, to) of which at least one had a conflict, only when conflicts are annotated.
+		 * The alleles of the insertion are added to the records.
+		 */
+		void addInsertion(InsertionColumns columns, int from, int to, ConflictIndex records);
+
+		/**
+		 * A region [start, end) below the minimum coverage with the summed coverage of its positions.
+		 */
+		void addLowCoverage(int start, int end, long coverage);
+
+		/**
+		 * A cluster of breakpoints that probably belong to the same InDel, [start, end) includes the assembly flank at
+		 * both sides.
+		 */
+		void addBreakpointCluster(int start, int end);
+	}
+
+	private final CallingKernel kernel;
+	private final int minCoverage;
+	private final boolean addConflicts;
+	private final int assemblyFlank;
+	private final Sink sink;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int buffered = 0;
+	private int pos = 0;
+	private int lastPos = Integer.MIN_VALUE;
+	private int count = 0;
+
+	private final InsertionColumns insertions = new InsertionColumns();
+	private int[] breakpoints = new int[16];
+	private int breakpointCount = 0;
+
+	// ring buffer with the breakpoints found in the last rows: row count and consensus position
+	private final int[] pendingCount = new int[IGNORE_FAILURES_CLOSE_TO_END + 1];
+	private final int[] pendingPos = new int[IGNORE_FAILURES_CLOSE_TO_END + 1];
+	private int pendingStart = 0;
+	private int pendingSize = 0;
+
+	private final DepthHistogram depths;
+	private int startLow = -1;
+	private long lowCoverage = 0;
+	private int conflicts = 0;
+	private final NRunIndex unknown = new NRunIndex();
+	private final ConflictIndex conflictRecords = new ConflictIndex();
+	private final AmpliconDepth ampliconDepth;
+
+	/**
+	 * @param amplicons     amplicons of a primer scheme to collect the depth of, or null
+	 * @param collectDepths false when the depth distribution is not needed, because it is known from another pass
+	 *                      over the same pileup
+	 * @param assemblyFlank number of positions added at both sides of a breakpoint cluster, breakpoints closer than
+	 *                      twice the flank are in the same cluster
+	 */
+	ConsensusCaller(CallingKernel kernel, int minCoverage, boolean addConflicts, PrimerScheme.Index amplicons,
+			boolean collectDepths, int assemblyFlank, Sink sink) {
+		this.kernel = kernel;
+		this.minCoverage = minCoverage;
+		this.addConflicts = addConflicts;
+		this.assemblyFlank = assemblyFlank;
+		this.sink = sink;
+		this.ampliconDepth = amplicons == null ? null : new AmpliconDepth(amplicons, minCoverage);
+		this.depths = collectDepths ? new DepthHistogram() : null;
+	}
+
+	void accept(PileupRows store) {
+		for (int row = 0; row < store.size(); row++) {
+			accept(store, row);
+		}
+	}
+
+	void accept(PileupRows store, int row) {
+		count++;
+		commitBreakpoints();
+		kernel.call(store, row);
+		if (kernel.isConflict()) {
+			conflicts++;
+		}
+		if (ampliconDepth != null) {
+			ampliconDepth.add(store.getPosition(row), kernel.getCoverage());
+		}
+		if (kernel.isGap()) {
+			if (kernel.isConflict() && addConflicts) {
+				insertions.add(pos, kernel);
+			}
+			return;
+		}
+		final int position = store.getPosition(row);
+		if (position >= lastPos) {
+			lastPos = position;
+		} else {
+			throw new IllegalStateException("Data points not sorted!");
+		}
+		final byte consensus = kernel.getConsensus();
+		buffer[buffered] = consensus;
+		if (kernel.isUnknown()) {
+			unknown.add(pos);
+		}
+		if (kernel.isConflict() && addConflicts) {
+			sink.addConflict(pos, kernel);
+			for (int allele = 0; allele < CallingKernel.CALLED_SYMBOLS; allele++) {
+				final byte symbol = CallingKernel.getSymbol(allele);
+				if (kernel.isPassing(allele) && symbol != consensus) {
+					conflictRecords.addSubstitution(pos, consensus, symbol, kernel.getCount(allele),
+							kernel.getCoverage());
+				}
+			}
+		}
+		if (count > IGNORE_FAILURES_CLOSE_TO_END && store.isBreakpointPosition(row)) {
+			final int index = (pendingStart + pendingSize++) % pendingCount.length;
+			pendingCount[index] = count;
+			pendingPos[index] = pos;
+		}
+
+		final int cov = kernel.getCoverage();
+		if (depths != null) {
+			depths.add(cov);
+		}
+		if (cov < minCoverage) {
+			if (startLow == -1) {
+				startLow = pos;
+				lowCoverage = 0;
+			}
+			lowCoverage += cov;
+		} else if (startLow != -1) {
+			sink.addLowCoverage(startLow, pos, lowCoverage);
+			startLow = -1;
+		}
+
+		buffered++;
+		pos++;
+		if (buffered == BUFFER_SIZE) {
+			sink.addSymbols(buffer, BUFFER_SIZE);
+			buffered = 0;
+		}
+	}
+
+	/**
+	 * A breakpoint is kept when more than {@link #IGNORE_FAILURES_CLOSE_TO_END} rows follow it.
+	 */
+	private void commitBreakpoints() {
+		while (pendingSize > 0 && count - pendingCount[pendingStart] > IGNORE_FAILURES_CLOSE_TO_END) {
+			final int p = pendingPos[pendingStart];
+			if (breakpointCount == breakpoints.length) {
+				breakpoints = Arrays.copyOf(breakpoints, breakpointCount * 2);
+			}
+			breakpoints[breakpointCount++] = p;
+			pendingStart = (pendingStart + 1) % pendingCount.length;
+			pendingSize--;
+		}
+	}
+
+	void finish() {
+		// breakpoints still pending are close to the end and are ignored
+		if (buffered > 0) {
+			sink.addSymbols(buffer, buffered);
+			buffered = 0;
+		}
+		if (startLow != -1) {
+			sink.addLowCoverage(startLow, pos, lowCoverage);
+			startLow = -1;
+		}
+		for (int column = 0; column < insertions.size(); column = insertions.getInsertionEnd(column)) {
+			sink.addInsertion(insertions, column, insertions.getInsertionEnd(column), conflictRecords);
+		}
+		// breakpoints whose flanks overlap belong to the same InDel, every cluster is resolved on its own. A single
+		// breakpoint is a cluster as well, the other side of the InDel can be hidden by low coverage.
+		int clusterStart = 0;
+		for (int b = 1; b <= breakpointCount; b++) {
+			if (b == breakpointCount || breakpoints[b] - breakpoints[b - 1] > 2 * assemblyFlank) {
+				sink.addBreakpointCluster(Math.max(0, breakpoints[clusterStart] - assemblyFlank),
+						Math.min(pos, breakpoints[b - 1] + 1 + assemblyFlank));
+				clusterStart = b;
+			}
+		}
+	}
+
+	/**
+	 * @return the depth distribution of the called positions, null when the depths are not collected
+	 */
+	DepthHistogram getDepths() {
+		return depths;
+	}
+
+	/**
+	 * @return number of called positions with more than one symbol passing the frequency threshold
+	 */
+	int getConflictCount() {
+		return conflicts;
+	}
+
+	NRunIndex getNRuns() {
+		return unknown;
+	}
+
+	/**
+	 * @return the conflict alleles, empty when conflicts are not annotated
+	 */
+	ConflictIndex getConflicts() {
+		return conflictRecords;
+	}
+
+	/**
+	 * @return the depth per amplicon, null when there are no amplicons
+	 */
+	AmpliconDepth getAmpliconDepth() {
+		return ampliconDepth;
+	}
+}
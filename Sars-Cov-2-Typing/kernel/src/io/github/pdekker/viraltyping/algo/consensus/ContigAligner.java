@@ -0,0 +1,313 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * Banded overlap aligner that places a local assembly contig on the consensus. Shared k-mers give the diagonals the
+ * contig lies on, the affine gap alignment is only computed in a band around these diagonals. Both ends of both
+ * sequences are free, so the contig can overhang the consensus and only the aligned part of the consensus is
+ * replaced. Symbols are DNA alphabet indices (0 -> A, 1 -> C, 2 -> G, 3 -> T), other symbols never match.
+ * <p>
+ * An alignment is only used when it is significant and close: the e-value (with the Karlin-Altschul parameters of
+ * blastn for these scores) may be at most {@link #MAX_EVALUE}, as for the blastn search the contigs were placed with
+ * before, and the identity over the aligned columns has to be at least {@link #MIN_IDENTITY}.
+ *
+ * @author pdekker
+ *
+ */
+final class ContigAligner {
+	private static final int K = 13;
+	private static final int MIN_ANCHORS = 2;
+	private static final int MAX_INDEL = 1_000;
+	private static final int BAND_MARGIN = 16;
+
+	private static final int MATCH = 2;
+	private static final int MISMATCH = -3;
+	private static final int GAP_OPEN = -5;
+	private static final int GAP_EXTEND = -2;
+	private static final int NONE = Integer.MIN_VALUE / 2;
+
+	// Karlin-Altschul parameters of blastn for match 2, mismatch -3, gap open 5 and gap extend 2
+	private static final double LAMBDA = 0.625;
+	private static final double KAPPA = 0.41;
+	static final double MAX_EVALUE = 1.0;
+	static final double MIN_IDENTITY = 0.9;
+
+	private static final int FROM_DIAGONAL = 0;
+	private static final int FROM_E = 1;
+	private static final int FROM_F = 2;
+	private static final int FROM_START = 3;
+	private static final int EXTEND_E = 4;
+	private static final int EXTEND_F = 8;
+
+	// trace back states, the E and F states use the same value as their source in the H matrix
+	private static final int STATE_H = 0;
+	private static final int STATE_E = FROM_E;
+
+	/**
+	 * Replacement of consensus[start, end) by the bases of the contig.
+	 */
+	static final class Patch {
+		final int start;
+		final int end;
+		final byte[] bases;
+		final int score;
+
+		private Patch(int start, int end, byte[] bases, int score) {
+			this.start = start;
+			this.end = end;
+			this.bases = bases;
+			this.score = score;
+		}
+	}
+
+	private int rejected = 0;
+
+	/**
+	 * @return the patch for the best alignment, null when the contig can't be placed, the alignment doesn't pass the
+	 *         e-value and identity thresholds or the contig is identical to the consensus
+	 */
+	Patch align(byte[] consensus, byte[] contig) {
+		final int n = consensus.length;
+		final int m = contig.length;
+		final int[] diagonals = findDiagonals(consensus, contig);
+		if (diagonals == null) {
+			return null;
+		}
+		final int low = diagonals[0] - BAND_MARGIN;
+		final int width = diagonals[1] + BAND_MARGIN - low + 1;
+
+		final byte[] trace = new byte[(m + 1) * width];
+		int[] h = new int[width];
+		int[] f = new int[width];
+		int[] prevH = new int[width];
+		int[] prevF = new int[width];
+
+		int bestScore = NONE;
+		int bestI = -1;
+		int bestB = -1;
+		for (int i = 0; i <= m; i++) {
+			int e = NONE;
+			for (int b = 0; b < width; b++) {
+				final int j = i + low + b;
+				if (j < 0 || j > n) {
+					h[b] = NONE;
+					f[b] = NONE;
+					e = NONE;
+					continue;
+				}
+				if (i == 0 || j == 0) {
+					h[b] = 0;
+					f[b] = NONE;
+					e = NONE;
+					trace[i * width + b] = FROM_START;
+				} else {
+					int t = 0;
+					// horizontal: consensus symbol j - 1 is deleted in the contig
+					final int eOpen = b > 0 ? h[b - 1] + GAP_OPEN + GAP_EXTEND : NONE;
+					final int eExtend = e + GAP_EXTEND;
+					if (eExtend > eOpen) {
+						e = eExtend;
+						t |= EXTEND_E;
+					} else {
+						e = eOpen;
+					}
+					// vertical: contig symbol i - 1 is inserted in the consensus
+					final int fOpen = b + 1 < width ? prevH[b + 1] + GAP_OPEN + GAP_EXTEND : NONE;
+					final int fExtend = b + 1 < width ? prevF[b + 1] + GAP_EXTEND : NONE;
+					if (fExtend > fOpen) {
+						f[b] = fExtend;
+						t |= EXTEND_F;
+					} else {
+						f[b] = fOpen;
+					}
+					final int d = prevH[b] + (consensus[j - 1] == contig[i - 1] && contig[i - 1] < 4 ? MATCH : MISMATCH);
+					if (d >= e && d >= f[b]) {
+						h[b] = d;
+						t |= FROM_DIAGONAL;
+					} else if (e >= f[b]) {
+						h[b] = e;
+						t |= FROM_E;
+					} else {
+						h[b] = f[b];
+						t |= FROM_F;
+					}
+					trace[i * width + b] = (byte) t;
+				}
+				if ((i == m || j == n) && h[b] > bestScore) {
+					bestScore = h[b];
+					bestI = i;
+					bestB = b;
+				}
+			}
+			int[] tmp = prevH;
+			prevH = h;
+			h = tmp;
+			tmp = prevF;
+			prevF = f;
+			f = tmp;
+		}
+		if (bestI == -1) {
+			return null;
+		}
+		if (getEvalue(bestScore, n, m) > MAX_EVALUE) {
+			rejected++;
+			return null;
+		}
+		return traceBack(consensus, contig, trace, width, low, bestI, bestB, bestScore);
+	}
+
+	/**
+	 * @return number of alignments that were found but did not pass the e-value or identity threshold
+	 */
+	int getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * @return the expected number of alignments with at least the score between random sequences of these lengths
+	 */
+	static double getEvalue(int score, int consensusLength, int contigLength) {
+		return KAPPA * consensusLength * contigLength * Math.exp(-LAMBDA * score);
+	}
+
+	private Patch traceBack(byte[] consensus, byte[] contig, byte[] trace, int width, int low, int endI,
+			int endB, int score) {
+		int i = endI;
+		int b = endB;
+		int state = STATE_H;
+		int differences = 0;
+		int columns = 0;
+		while (true) {
+			final int t = trace[i * width + b];
+			if (state == STATE_H) {
+				final int source = t & 3;
+				if (source == FROM_START) {
+					break;
+				}
+				if (source == FROM_DIAGONAL) {
+					columns++;
+					final int j = i + low + b;
+					if (consensus[j - 1] != contig[i - 1]) {
+						differences++;
+					}
+					i--;
+				} else {
+					state = source;
+				}
+			} else if (state == STATE_E) {
+				columns++;
+				differences++;
+				state = (t & EXTEND_E) != 0 ? STATE_E : STATE_H;
+				b--;
+			} else {
+				columns++;
+				differences++;
+				state = (t & EXTEND_F) != 0 ? state : STATE_H;
+				i--;
+				b++;
+			}
+		}
+		if (differences == 0) {
+			return null;
+		}
+		if (columns - differences < MIN_IDENTITY * columns) {
+			rejected++;
+			return null;
+		}
+		final int start = i + low + b;
+		final int end = endI + low + endB;
+		return new Patch(start, end, Arrays.copyOfRange(contig, i, endI), score);
+	}
+
+	/**
+	 * @return lowest and highest diagonal (consensus position - contig position) of the k-mer anchors around the
+	 *         most common diagonal, null when there are not enough anchors
+	 */
+	private static int[] findDiagonals(byte[] consensus, byte[] contig) {
+		// k-mers of the contig with their position, sorted so they can be searched
+		final long[] kmers = new long[Math.max(0, contig.length - K + 1)];
+		int count = 0;
+		int kmer = 0;
+		int valid = 0;
+		for (int i = 0; i < contig.length; i++) {
+			kmer = nextKmer(kmer, contig[i]);
+			valid = contig[i] >= 0 && contig[i] < 4 ? valid + 1 : 0;
+			if (valid >= K) {
+				kmers[count++] = (long) kmer << 32 | i - K + 1;
+			}
+		}
+		Arrays.sort(kmers, 0, count);
+
+		int[] diagonals = new int[64];
+		int hits = 0;
+		kmer = 0;
+		valid = 0;
+		for (int j = 0; j < consensus.length; j++) {
+			kmer = nextKmer(kmer, consensus[j]);
+			valid = consensus[j] >= 0 && consensus[j] < 4 ? valid + 1 : 0;
+			if (valid < K) {
+				continue;
+			}
+			final int index = findUnique(kmers, count, kmer);
+			if (index >= 0) {
+				if (hits == diagonals.length) {
+					diagonals = Arrays.copyOf(diagonals, hits * 2);
+				}
+				diagonals[hits++] = j - K + 1 - (int) kmers[index];
+			}
+		}
+		if (hits < MIN_ANCHORS) {
+			return null;
+		}
+		Arrays.sort(diagonals, 0, hits);
+		int mode = diagonals[0];
+		int modeCount = 0;
+		for (int start = 0, end = 0; start < hits; start = end) {
+			while (end < hits && diagonals[end] == diagonals[start]) {
+				end++;
+			}
+			if (end - start > modeCount) {
+				mode = diagonals[start];
+				modeCount = end - start;
+			}
+		}
+		int min = mode;
+		int max = mode;
+		for (int i = 0; i < hits; i++) {
+			if (Math.abs(diagonals[i] - mode) <= MAX_INDEL) {
+				min = Math.min(min, diagonals[i]);
+				max = Math.max(max, diagonals[i]);
+			}
+		}
+		return new int[] { min, max };
+	}
+
+	private static int nextKmer(int kmer, byte symbol) {
+		return (kmer << 2 | symbol & 3) & (1 << 2 * K) - 1;
+	}
+
+	/**
+	 * @return index of the k-mer in the sorted array, -1 when it is absent or occurs more than once
+	 */
+	private static int findUnique(long[] kmers, int count, int kmer) {
+		int lowIndex = 0;
+		int highIndex = count - 1;
+		final long key = (long) kmer << 32;
+		while (lowIndex < highIndex) {
+			final int mid = lowIndex + highIndex >>> 1;
+			if (kmers[mid] < key) {
+				lowIndex = mid + 1;
+			} else {
+				highIndex = mid;
+			}
+		}
+		if (count == 0 || kmers[lowIndex] >>> 32 != kmer) {
+			return -1;
+		}
+		if (lowIndex + 1 < count && kmers[lowIndex + 1] >>> 32 == kmer) {
+			return -1;
+		}
+		return lowIndex;
+	}
+}
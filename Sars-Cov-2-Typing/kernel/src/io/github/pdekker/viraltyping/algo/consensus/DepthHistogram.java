@@ -0,0 +1,131 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+/**
+ * Histogram of the depth per position in primitive buckets. Depths below {@value #LINEAR_DEPTHS} have a bucket of
+ * their own, higher depths share buckets that are at most 1/{@value #SUB_BUCKETS} of their depth wide. Percentiles
+ * and breadths are computed by one walk over the buckets, so they don't depend on the number of positions.
+ * Histograms of several segments or samples can be merged.
+ *
+ * @author pdekker
+ *
+ */
+final class DepthHistogram {
+	private static final int LINEAR_BITS = 10;
+	private static final int LINEAR_DEPTHS = 1 << LINEAR_BITS;
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = LINEAR_DEPTHS + (Integer.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private double sumOfSquares = 0;
+	private int min = Integer.MAX_VALUE;
+	private int max = 0;
+
+	void add(int depth) {
+		counts[getBucket(depth)]++;
+		count++;
+		sum += depth;
+		sumOfSquares += (double) depth * depth;
+		min = Math.min(min, depth);
+		max = Math.max(max, depth);
+	}
+
+	/**
+	 * Adds the positions of the other histogram to this one.
+	 */
+	void merge(DepthHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		sumOfSquares += other.sumOfSquares;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	int getMin() {
+		return isEmpty() ? 0 : min;
+	}
+
+	int getMax() {
+		return max;
+	}
+
+	double getAverage() {
+		return isEmpty() ? 0 : (double) sum / count;
+	}
+
+	double getStandardDeviation() {
+		if (isEmpty()) {
+			return 0;
+		}
+		final double average = getAverage();
+		return Math.sqrt(Math.max(0, sumOfSquares / count - average * average));
+	}
+
+	/**
+	 * @param fraction between 0 and 1
+	 * @return the lowest depth of the bucket with the position at the fraction, in depth order (nearest rank)
+	 */
+	int getPercentile(double fraction) {
+		if (isEmpty()) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += counts[i];
+			if (cumulative >= rank) {
+				return Math.max(min, Math.min(max, getBucketStart(i)));
+			}
+		}
+		return max;
+	}
+
+	int getMedian() {
+		return getPercentile(0.5);
+	}
+
+	/**
+	 * @return fraction of the positions with at least the depth, exact for depths below {@value #LINEAR_DEPTHS}
+	 */
+	double getBreadth(int depth) {
+		if (isEmpty()) {
+			return 0;
+		}
+		long covered = 0;
+		for (int i = getBucket(depth); i < BUCKETS; i++) {
+			covered += counts[i];
+		}
+		return (double) covered / count;
+	}
+
+	private static int getBucket(int depth) {
+		if (depth < LINEAR_DEPTHS) {
+			return Math.max(0, depth);
+		}
+		final int highestBit = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(depth);
+		final int subBucket = (depth >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_DEPTHS + (highestBit - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	private static int getBucketStart(int bucket) {
+		if (bucket < LINEAR_DEPTHS) {
+			return bucket;
+		}
+		final int highestBit = (bucket - LINEAR_DEPTHS) / SUB_BUCKETS + LINEAR_BITS;
+		final int subBucket = (bucket - LINEAR_DEPTHS) % SUB_BUCKETS;
+		return (1 << highestBit) | subBucket << (highestBit - SUB_BUCKET_BITS);
+	}
+}
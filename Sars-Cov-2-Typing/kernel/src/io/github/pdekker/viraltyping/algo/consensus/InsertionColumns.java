@@ -0,0 +1,108 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * The gap-called insertion columns with a conflict, in consensus position order. The columns of one insertion share
+ * the consensus position after the insertion. Per column the counts of the passing symbols and the coverage are kept
+ * in flat primitive arrays; the columns are turned into conflict features only when the consensus is finished.
+ *
+ * @author pdekker
+ *
+ */
+final class InsertionColumns {
+	private static final int SYMBOLS = CallingKernel.CALLED_SYMBOLS;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] positions = new int[INITIAL_CAPACITY];
+	private int[] coverages = new int[INITIAL_CAPACITY];
+	private int[] counts = new int[INITIAL_CAPACITY * SYMBOLS];
+	private byte[] passing = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Adds the passing symbols of the column called by the kernel, positions have to be added in increasing order.
+	 */
+	void add(int position, CallingKernel kernel) {
+		if (size == positions.length) {
+			final int capacity = size * 2;
+			positions = Arrays.copyOf(positions, capacity);
+			coverages = Arrays.copyOf(coverages, capacity);
+			counts = Arrays.copyOf(counts, capacity * SYMBOLS);
+			passing = Arrays.copyOf(passing, capacity);
+		}
+		byte mask = 0;
+		for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+			if (kernel.isPassing(symbol)) {
+				mask |= 1 << symbol;
+				counts[size * SYMBOLS + symbol] = kernel.getCount(symbol);
+			} else {
+				counts[size * SYMBOLS + symbol] = 0;
+			}
+		}
+		positions[size] = position;
+		coverages[size] = kernel.getCoverage();
+		passing[size] = mask;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getPosition(int column) {
+		return positions[column];
+	}
+
+	int getCoverage(int column) {
+		return coverages[column];
+	}
+
+	int getCount(int column, int symbol) {
+		return counts[column * SYMBOLS + symbol];
+	}
+
+	boolean isPassing(int column, int symbol) {
+		return (passing[column] & 1 << symbol) != 0;
+	}
+
+	int getPassingCount(int column) {
+		return Integer.bitCount(passing[column]);
+	}
+
+	/**
+	 * @return the index of the first column after the insertion the column belongs to
+	 */
+	int getInsertionEnd(int column) {
+		int end = column + 1;
+		while (end < size && positions[end] == positions[column]) {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the passing symbol of the column at the rank, ordered on decreasing count. Symbols with the same count
+	 *         keep their symbol order.
+	 */
+	int getRankedSymbol(int column, int rank) {
+		final int offset = column * SYMBOLS;
+		for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+			if (!isPassing(column, symbol)) {
+				continue;
+			}
+			// the number of passing symbols ranked before this one
+			int before = 0;
+			for (int other = 0; other < SYMBOLS; other++) {
+				if (other != symbol && isPassing(column, other) && (counts[offset + other] > counts[offset + symbol]
+						|| counts[offset + other] == counts[offset + symbol] && other < symbol)) {
+					before++;
+				}
+			}
+			if (before == rank) {
+				return symbol;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,268 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small de Bruijn graph assembler for the reads around a breakpoint. The k-mers of the reads (and their reverse
+ * complements) are packed in a long and counted in an open addressing table, contigs are built by greedily walking
+ * from the most frequent unused k-mer to the most frequent successor and predecessor. Symbols are DNA alphabet
+ * indices (0 -> A, 1 -> C, 2 -> G, 3 -> T), everything else breaks the k-mers.
+ *
+ * @author pdekker
+ *
+ */
+final class LocalAssembler {
+	static final int DEFAULT_K = 25;
+	static final int DEFAULT_MIN_COUNT = 3;
+	static final int DEFAULT_MAX_CONTIGS = 10;
+
+	private final int k;
+	private final int minCount;
+	private final int maxContigs;
+	private final long mask;
+
+	private final KmerTable table = new KmerTable();
+
+	LocalAssembler() {
+		this(DEFAULT_K, DEFAULT_MIN_COUNT, DEFAULT_MAX_CONTIGS);
+	}
+
+	/**
+	 * @param k          k-mer length, at most 31
+	 * @param minCount   minimum number of occurrences of a k-mer to be used in a contig
+	 * @param maxContigs maximum number of contigs returned
+	 */
+	LocalAssembler(int k, int minCount, int maxContigs) {
+		if (k < 2 || k > 31) {
+			throw new IllegalArgumentException("k should be between 2 and 31: " + k);
+		}
+		this.k = k;
+		this.minCount = minCount;
+		this.maxContigs = maxContigs;
+		this.mask = (1L << 2 * k) - 1;
+	}
+
+	void addRead(byte[] symbols) {
+		addRead(symbols, 0, symbols.length);
+	}
+
+	void addRead(byte[] symbols, int from, int to) {
+		long forward = 0;
+		long reverse = 0;
+		int valid = 0;
+		for (int i = from; i < to; i++) {
+			final int symbol = symbols[i];
+			if (symbol < 0 || symbol > 3) {
+				valid = 0;
+				continue;
+			}
+			forward = (forward << 2 | symbol) & mask;
+			reverse = reverse >>> 2 | (long) (3 - symbol) << 2 * (k - 1);
+			if (++valid >= k) {
+				table.increment(forward);
+				table.increment(reverse);
+			}
+		}
+	}
+
+	/**
+	 * @return the contigs of at least 2 * k symbols, longest first
+	 */
+	List<byte[]> assemble() {
+		final long[] seeds = table.getKmersByCount(minCount);
+		final List<byte[]> contigs = new ArrayList<>();
+		final ByteList right = new ByteList();
+		final ByteList left = new ByteList();
+		for (final long seed : seeds) {
+			if (table.isUsed(seed)) {
+				continue;
+			}
+			table.setUsed(seed);
+			table.setUsed(reverseComplement(seed));
+			right.clear();
+			left.clear();
+			extend(seed, right, true);
+			extend(seed, left, false);
+			final int length = left.size() + k + right.size();
+			if (length < 2 * k) {
+				continue;
+			}
+			final byte[] contig = new byte[length];
+			for (int i = 0; i < left.size(); i++) {
+				contig[i] = left.get(left.size() - 1 - i);
+			}
+			for (int i = 0; i < k; i++) {
+				contig[left.size() + i] = (byte) (seed >>> 2 * (k - 1 - i) & 3);
+			}
+			for (int i = 0; i < right.size(); i++) {
+				contig[left.size() + k + i] = right.get(i);
+			}
+			contigs.add(contig);
+		}
+		contigs.sort((c1, c2) -> Integer.compare(c2.length, c1.length));
+		return contigs.size() > maxContigs ? new ArrayList<>(contigs.subList(0, maxContigs)) : contigs;
+	}
+
+	/**
+	 * Walks from the k-mer to the most frequent neighbour until no unused neighbour with enough occurrences is left.
+	 */
+	private void extend(long kmer, ByteList symbols, boolean forward) {
+		while (true) {
+			long best = -1;
+			int bestCount = minCount - 1;
+			int bestSymbol = -1;
+			for (int symbol = 0; symbol < 4; symbol++) {
+				final long next = forward ? (kmer << 2 | symbol) & mask : kmer >>> 2 | (long) symbol << 2 * (k - 1);
+				final int count = table.getCount(next);
+				if (count > bestCount) {
+					best = next;
+					bestCount = count;
+					bestSymbol = symbol;
+				}
+			}
+			if (best == -1 || table.isUsed(best)) {
+				return;
+			}
+			table.setUsed(best);
+			table.setUsed(reverseComplement(best));
+			symbols.add((byte) bestSymbol);
+			kmer = best;
+		}
+	}
+
+	/**
+	 * @return the reverse complement of DNA alphabet symbols, other symbols are kept
+	 */
+	static byte[] reverseComplement(byte[] symbols) {
+		final byte[] result = new byte[symbols.length];
+		for (int i = 0; i < symbols.length; i++) {
+			final byte symbol = symbols[symbols.length - 1 - i];
+			result[i] = symbol >= 0 && symbol < 4 ? (byte) (3 - symbol) : symbol;
+		}
+		return result;
+	}
+
+	private long reverseComplement(long kmer) {
+		long result = 0;
+		for (int i = 0; i < k; i++) {
+			result = result << 2 | 3 - (kmer & 3);
+			kmer >>>= 2;
+		}
+		return result;
+	}
+
+	/**
+	 * Open addressing hash table from packed k-mer to count, with a used flag per k-mer for the graph walk.
+	 */
+	private static final class KmerTable {
+		private static final long EMPTY = -1;
+		private static final int USED = Integer.MIN_VALUE;
+
+		private long[] keys = newKeys(1 << 10);
+		private int[] counts = new int[keys.length];
+		private int size;
+
+		private static long[] newKeys(int capacity) {
+			final long[] keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			return keys;
+		}
+
+		private int slot(long key) {
+			int index = (int) (key * 0x9E3779B97F4A7C15L >>> 32) & keys.length - 1;
+			while (keys[index] != EMPTY && keys[index] != key) {
+				index = index + 1 & keys.length - 1;
+			}
+			return index;
+		}
+
+		void increment(long key) {
+			if (size * 2 >= keys.length) {
+				grow();
+			}
+			final int index = slot(key);
+			if (keys[index] == EMPTY) {
+				keys[index] = key;
+				size++;
+			}
+			counts[index]++;
+		}
+
+		int getCount(long key) {
+			final int index = slot(key);
+			return keys[index] == EMPTY ? 0 : counts[index] & ~USED;
+		}
+
+		boolean isUsed(long key) {
+			final int index = slot(key);
+			return keys[index] != EMPTY && (counts[index] & USED) != 0;
+		}
+
+		void setUsed(long key) {
+			final int index = slot(key);
+			if (keys[index] != EMPTY) {
+				counts[index] |= USED;
+			}
+		}
+
+		/**
+		 * @return the k-mers with at least minCount occurrences, most frequent first
+		 */
+		long[] getKmersByCount(int minCount) {
+			final long[] packed = new long[size];
+			int n = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != EMPTY && counts[i] >= minCount) {
+					// count in the high bits, slot in the low bits, so sorting orders by count
+					packed[n++] = (long) counts[i] << 32 | i;
+				}
+			}
+			Arrays.sort(packed, 0, n);
+			final long[] kmers = new long[n];
+			for (int i = 0; i < n; i++) {
+				kmers[i] = keys[(int) packed[n - 1 - i]];
+			}
+			return kmers;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final int[] oldCounts = counts;
+			keys = newKeys(oldKeys.length * 2);
+			counts = new int[keys.length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					final int index = slot(oldKeys[i]);
+					keys[index] = oldKeys[i];
+					counts[index] = oldCounts[i];
+				}
+			}
+		}
+	}
+
+	private static final class ByteList {
+		private byte[] data = new byte[256];
+		private int size;
+
+		void add(byte b) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = b;
+		}
+
+		byte get(int index) {
+			return data[index];
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * Runs of N's in a consensus as (start, length) pairs in position order. The index is built while the consensus is
+ * written and kept up to date when the consensus is patched or trimmed, so nobody has to scan the sequence again.
+ *
+ * @author pdekker
+ *
+ */
+final class NRunIndex {
+	private int[] starts = new int[16];
+	private int[] lengths = new int[16];
+	private int count = 0;
+
+	/**
+	 * Adds an N at the position, positions have to be added in increasing order.
+	 */
+	void add(int position) {
+		addRun(position, position + 1);
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	int getRunCount() {
+		return count;
+	}
+
+	int getStart(int run) {
+		return starts[run];
+	}
+
+	int getLength(int run) {
+		return lengths[run];
+	}
+
+	/**
+	 * @return number of N's in the consensus
+	 */
+	int getTotalLength() {
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			total += lengths[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Updates the index for the replacement of [start, end) by replacementLength symbols without N's.
+	 */
+	void replace(int start, int end, int replacementLength) {
+		final int shift = replacementLength - (end - start);
+		final NRunIndex result = new NRunIndex();
+		for (int i = 0; i < count; i++) {
+			final int runStart = starts[i];
+			final int runEnd = runStart + lengths[i];
+			if (runEnd <= start) {
+				result.addRun(runStart, runEnd);
+			} else if (runStart >= end) {
+				result.addRun(runStart + shift, runEnd + shift);
+			} else {
+				// the parts outside the replaced interval are kept, the part after it is shifted
+				if (runStart < start) {
+					result.addRun(runStart, start);
+				}
+				if (runEnd > end) {
+					result.addRun(start + replacementLength, runEnd + shift);
+				}
+			}
+		}
+		copyFrom(result);
+	}
+
+	/**
+	 * Updates the index for trimming the consensus to [start, end).
+	 */
+	void trim(int start, int end) {
+		final NRunIndex result = new NRunIndex();
+		for (int i = 0; i < count; i++) {
+			final int runStart = Math.max(start, starts[i]);
+			final int runEnd = Math.min(end, starts[i] + lengths[i]);
+			if (runStart < runEnd) {
+				result.addRun(runStart - start, runEnd - start);
+			}
+		}
+		copyFrom(result);
+	}
+
+	private void addRun(int start, int end) {
+		if (count > 0 && starts[count - 1] + lengths[count - 1] == start) {
+			lengths[count - 1] += end - start;
+			return;
+		}
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		starts[count] = start;
+		lengths[count] = end - start;
+		count++;
+	}
+
+	private void copyFrom(NRunIndex other) {
+		starts = other.starts;
+		lengths = other.lengths;
+		count = other.count;
+	}
+}
@@ -0,0 +1,73 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+/**
+ * Counts the reads of one pileup column into a row of a {@link PileupStore}. A read with a long unaligned end at
+ * the column, that doesn't run off the reference, points to a breakpoint; the row is flagged when the fraction of
+ * these reads is above the breakpoint ratio. The column is reused for every row of an iteration.
+ *
+ * @author pdekker
+ *
+ */
+final class PileupColumn {
+	static final int MAX_UNALIGNED_END = 5;
+
+	private final int mainLength;
+	private final double minBreakPointRatio;
+
+	private PileupStore store;
+	private int row;
+	private int position;
+	private int coverage;
+	private int rightBreakPoint;
+	private int leftBreakPoint;
+
+	/**
+	 * @param mainLength length of the reference
+	 */
+	PileupColumn(int mainLength, double minBreakPointRatio) {
+		this.mainLength = mainLength;
+		this.minBreakPointRatio = minBreakPointRatio;
+	}
+
+	void start(PileupStore store, int row, int position) {
+		this.store = store;
+		this.row = row;
+		this.position = position;
+		coverage = 0;
+		rightBreakPoint = 0;
+		leftBreakPoint = 0;
+	}
+
+	/**
+	 * @param symbol          alphabet index of the base, A, C, G, T are 0-3 and everything else is counted as N
+	 * @param unalignedBefore number of unaligned bases of the read before this column, 0 when the read is aligned
+	 *                        there
+	 * @param unalignedAfter  number of unaligned bases of the read after this column, 0 when the read is aligned
+	 *                        there
+	 */
+	void addBase(byte symbol, boolean reverse, int unalignedBefore, int unalignedAfter) {
+		if (unalignedAfter > MAX_UNALIGNED_END && position + unalignedAfter < mainLength - MAX_UNALIGNED_END) {
+			rightBreakPoint++;
+		}
+		if (unalignedBefore > MAX_UNALIGNED_END && position - unalignedBefore > MAX_UNALIGNED_END) {
+			leftBreakPoint++;
+		}
+		// 0 -> gap 1,2,3,4 -> symbol, 5 -> N
+		store.increment(row, 0 <= symbol && symbol < 4 ? symbol + 1 : 5, reverse);
+		coverage++;
+	}
+
+	void addGap(boolean reverse) {
+		store.increment(row, 0, reverse);
+		coverage++;
+	}
+
+	/**
+	 * Sets the breakpoint flags of the row.
+	 */
+	void finish() {
+		final boolean right = (double) rightBreakPoint / coverage > minBreakPointRatio;
+		final boolean left = (double) leftBreakPoint / coverage > minBreakPointRatio;
+		store.setBreakpoints(row, left, right);
+	}
+}
@@ -0,0 +1,28 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+/**
+ * Read access to the rows of a pileup, all the calling pass needs. Implemented by the {@link PileupStore} the reads
+ * are counted into and by the rows of a {@link PileupSnapshot}, which are read straight from the mapped file.
+ *
+ * @author pdekker
+ *
+ */
+interface PileupRows {
+
+	int size();
+
+	int getPosition(int row);
+
+	int getForCount(int row, int symbol);
+
+	int getRevCount(int row, int symbol);
+
+	/**
+	 * @return the forward plus reverse count of the symbol
+	 */
+	int getCount(int row, int symbol);
+
+	int getCoverage(int row);
+
+	boolean isBreakpointPosition(int row);
+}
@@ -0,0 +1,301 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary snapshot of the pileup of one reference sequence. The snapshot holds the rows of all sessions in position
+ * order and the extension at both ends, which is all that is needed to call the consensus again with other calling
+ * parameters without going through the reads. The name and length of the reference are kept in the header, so a
+ * snapshot can be checked against the reference it is recalled for.
+ * <p>
+ * The rows of a session are written column by column, the counts in the smallest width (1, 2 or 4 bytes) that holds
+ * the highest count of the session. A snapshot that is read maps the rows of every session read-only, the rows are
+ * only read from the mapped file while the consensus is called.
+ *
+ * @author pdekker
+ *
+ */
+final class PileupSnapshot {
+	private static final int MAGIC = 0x43505550; // CPUP
+	private static final int VERSION = 3;
+	private static final int NO_EXTENSION = -1;
+
+	private final String referenceName;
+	private final int referenceLength;
+	private final List<PileupRows> stores;
+	private final int extensionLeft;
+	private final int extensionRight;
+
+	/**
+	 * @param extensionLeft  number of positions added at the start, -1 when the consensus was not extended
+	 * @param extensionRight number of positions added at the end, -1 when the consensus was not extended
+	 */
+	PileupSnapshot(String referenceName, int referenceLength, List<? extends PileupRows> stores, int extensionLeft,
+			int extensionRight) {
+		this.referenceName = referenceName;
+		this.referenceLength = referenceLength;
+		this.stores = Collections.unmodifiableList(new ArrayList<>(stores));
+		this.extensionLeft = extensionLeft;
+		this.extensionRight = extensionRight;
+	}
+
+	String getReferenceName() {
+		return referenceName;
+	}
+
+	int getReferenceLength() {
+		return referenceLength;
+	}
+
+	List<PileupRows> getStores() {
+		return stores;
+	}
+
+	boolean hasExtension() {
+		return extensionLeft != NO_EXTENSION;
+	}
+
+	int getExtensionLeft() {
+		return extensionLeft;
+	}
+
+	int getExtensionRight() {
+		return extensionRight;
+	}
+
+	void write(Path file) throws IOException {
+		final byte[] name = referenceName.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer header = ByteBuffer.allocate(7 * Integer.BYTES + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(name.length);
+		header.put(name);
+		header.putInt(referenceLength);
+		header.putInt(extensionLeft);
+		header.putInt(extensionRight);
+		header.putInt(stores.size());
+		header.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, header);
+			for (final PileupRows store : stores) {
+				writeFully(channel, serialize(store));
+			}
+			channel.force(false);
+		}
+	}
+
+	static PileupSnapshot read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long fileSize = channel.size();
+			final ByteBuffer start = readFully(channel, 0, 3 * Integer.BYTES, file);
+			if (start.getInt() != MAGIC) {
+				throw new IOException(file + " is not a pileup snapshot");
+			}
+			final int version = start.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported pileup snapshot version " + version + " in " + file);
+			}
+			final int nameLength = start.getInt();
+			if (nameLength < 0 || nameLength > fileSize) {
+				throw new IOException(file + " is not a pileup snapshot");
+			}
+			final ByteBuffer header = readFully(channel, 3 * Integer.BYTES, nameLength + 4 * Integer.BYTES, file);
+			final byte[] name = new byte[nameLength];
+			header.get(name);
+			final int referenceLength = header.getInt();
+			final int extensionLeft = header.getInt();
+			final int extensionRight = header.getInt();
+			final int count = header.getInt();
+			long offset = 7 * Integer.BYTES + nameLength;
+			final List<PileupRows> stores = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				final ByteBuffer storeHeader = readFully(channel, offset, 2 * Integer.BYTES, file);
+				final int size = storeHeader.getInt();
+				final int countBytes = storeHeader.getInt();
+				final long length = getRowsSize(size, countBytes);
+				offset += 2 * Integer.BYTES;
+				if (size < 0 || !isCountWidth(countBytes) || length > Integer.MAX_VALUE
+						|| offset + length > fileSize) {
+					throw new IOException("Corrupt pileup snapshot " + file);
+				}
+				// the mapping stays valid after the channel is closed
+				final ByteBuffer rows = channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				stores.add(new MappedRows(rows, size, countBytes));
+				offset += length;
+			}
+			if (offset != fileSize) {
+				throw new IOException("Corrupt pileup snapshot " + file);
+			}
+			return new PileupSnapshot(new String(name, StandardCharsets.UTF_8), referenceLength, stores,
+					extensionLeft, extensionRight);
+		}
+	}
+
+	static PileupSnapshot withoutExtension(String referenceName, int referenceLength,
+			List<? extends PileupRows> stores) {
+		return new PileupSnapshot(referenceName, referenceLength, stores, NO_EXTENSION, NO_EXTENSION);
+	}
+
+	private static ByteBuffer serialize(PileupRows store) throws IOException {
+		final int size = store.size();
+		int maxCount = 0;
+		for (int row = 0; row < size; row++) {
+			for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+				maxCount = Math.max(maxCount, Math.max(store.getForCount(row, symbol), store.getRevCount(row, symbol)));
+			}
+		}
+		final int countBytes = maxCount <= 0xFF ? 1 : maxCount <= 0xFFFF ? 2 : Integer.BYTES;
+		final long length = 2 * Integer.BYTES + getRowsSize(size, countBytes);
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Pileup of a session is too large for a snapshot");
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(size);
+		buffer.putInt(countBytes);
+		for (int row = 0; row < size; row++) {
+			buffer.putInt(store.getPosition(row));
+		}
+		for (int row = 0; row < size; row++) {
+			for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+				putCount(buffer, store.getForCount(row, symbol), countBytes);
+			}
+		}
+		for (int row = 0; row < size; row++) {
+			for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+				putCount(buffer, store.getRevCount(row, symbol), countBytes);
+			}
+		}
+		for (int row = 0; row < size; row++) {
+			buffer.put(store.isBreakpointPosition(row) ? (byte) 1 : 0);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void putCount(ByteBuffer buffer, int count, int countBytes) {
+		switch (countBytes) {
+		case 1:
+			buffer.put((byte) count);
+			break;
+		case 2:
+			buffer.putChar((char) count);
+			break;
+		default:
+			buffer.putInt(count);
+		}
+	}
+
+	private static boolean isCountWidth(int countBytes) {
+		return countBytes == 1 || countBytes == 2 || countBytes == Integer.BYTES;
+	}
+
+	/**
+	 * @return bytes of the positions, the forward and reverse counts and the flags of the rows
+	 */
+	private static long getRowsSize(int size, int countBytes) {
+		return (long) size * (Integer.BYTES + 2 * PileupStore.SYMBOLS * countBytes + 1);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length, Path file)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of pileup snapshot " + file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Rows of one session in the mapped file. Only absolute reads are used, so the rows can be called from several
+	 * threads at once.
+	 */
+	private static final class MappedRows implements PileupRows {
+		private final ByteBuffer buffer;
+		private final int size;
+		private final int countBytes;
+		private final int forOffset;
+		private final int revOffset;
+		private final int flagOffset;
+
+		private MappedRows(ByteBuffer buffer, int size, int countBytes) {
+			this.buffer = buffer;
+			this.size = size;
+			this.countBytes = countBytes;
+			forOffset = size * Integer.BYTES;
+			revOffset = forOffset + size * PileupStore.SYMBOLS * countBytes;
+			flagOffset = revOffset + size * PileupStore.SYMBOLS * countBytes;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public int getPosition(int row) {
+			return buffer.getInt(row * Integer.BYTES);
+		}
+
+		@Override
+		public int getForCount(int row, int symbol) {
+			return getCountAt(forOffset, row * PileupStore.SYMBOLS + symbol);
+		}
+
+		@Override
+		public int getRevCount(int row, int symbol) {
+			return getCountAt(revOffset, row * PileupStore.SYMBOLS + symbol);
+		}
+
+		@Override
+		public int getCount(int row, int symbol) {
+			final int index = row * PileupStore.SYMBOLS + symbol;
+			return getCountAt(forOffset, index) + getCountAt(revOffset, index);
+		}
+
+		@Override
+		public int getCoverage(int row) {
+			final int index = row * PileupStore.SYMBOLS;
+			int sum = 0;
+			for (int i = index; i < index + PileupStore.SYMBOLS; i++) {
+				sum += getCountAt(forOffset, i) + getCountAt(revOffset, i);
+			}
+			return sum;
+		}
+
+		@Override
+		public boolean isBreakpointPosition(int row) {
+			return buffer.get(flagOffset + row) != 0;
+		}
+
+		private int getCountAt(int offset, int index) {
+			switch (countBytes) {
+			case 1:
+				return buffer.get(offset + index) & 0xFF;
+			case 2:
+				return buffer.getChar(offset + 2 * index);
+			default:
+				return buffer.getInt(offset + Integer.BYTES * index);
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.Arrays;
+
+/**
+ * Columnar pileup store. Every row is one column of the read mapping (a reference position or an insertion column)
+ * and holds the forward and reverse counts per symbol together with the breakpoint flags. All data is kept in flat
+ * primitive arrays indexed by row, so no objects are created per position.
+ *
+ * @author pdekker
+ *
+ */
+final class PileupStore implements PileupRows {
+	static final int SYMBOLS = 6; // 0 -> gap 1,2,3,4 -> symbol, 5 -> N
+
+	static final byte LEFT_BREAKPOINT = 1;
+	static final byte RIGHT_BREAKPOINT = 2;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] positions;
+	private int[] forCounts;
+	private int[] revCounts;
+	private byte[] flags;
+	private int size;
+
+	PileupStore(int capacity) {
+		capacity = Math.max(MIN_CAPACITY, capacity);
+		positions = new int[capacity];
+		forCounts = new int[capacity * SYMBOLS];
+		revCounts = new int[capacity * SYMBOLS];
+		flags = new byte[capacity];
+	}
+
+	void add(int position, int[] symbolForCounts, int[] symbolRevCounts, boolean left, boolean right) {
+		ensureCapacity(size + 1);
+		final int row = size++;
+		positions[row] = position;
+		System.arraycopy(symbolForCounts, 0, forCounts, row * SYMBOLS, SYMBOLS);
+		System.arraycopy(symbolRevCounts, 0, revCounts, row * SYMBOLS, SYMBOLS);
+		setBreakpoints(row, left, right);
+	}
+
+	/**
+	 * Appends an empty row for the given position and returns its index. The counts of the row are filled with
+	 * {@link #increment(int, int, boolean)}.
+	 */
+	int addRow(int position) {
+		ensureCapacity(size + 1);
+		final int row = size++;
+		positions[row] = position;
+		return row;
+	}
+
+	/**
+	 * Appends a copy of a row of another store and returns its index.
+	 */
+	int addRow(PileupStore source, int sourceRow) {
+		final int row = addRow(source.positions[sourceRow]);
+		System.arraycopy(source.forCounts, sourceRow * SYMBOLS, forCounts, row * SYMBOLS, SYMBOLS);
+		System.arraycopy(source.revCounts, sourceRow * SYMBOLS, revCounts, row * SYMBOLS, SYMBOLS);
+		flags[row] = source.flags[sourceRow];
+		return row;
+	}
+
+	void increment(int row, int symbol, boolean reverse) {
+		if (reverse) {
+			revCounts[row * SYMBOLS + symbol]++;
+		} else {
+			forCounts[row * SYMBOLS + symbol]++;
+		}
+	}
+
+	void setBreakpoints(int row, boolean left, boolean right) {
+		flags[row] = (byte) ((left ? LEFT_BREAKPOINT : 0) | (right ? RIGHT_BREAKPOINT : 0));
+	}
+
+	void clear() {
+		Arrays.fill(forCounts, 0, size * SYMBOLS, 0);
+		Arrays.fill(revCounts, 0, size * SYMBOLS, 0);
+		Arrays.fill(flags, 0, size, (byte) 0);
+		size = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= positions.length) {
+			return;
+		}
+		final int newCapacity = Math.max(capacity, positions.length + (positions.length >> 1));
+		positions = Arrays.copyOf(positions, newCapacity);
+		forCounts = Arrays.copyOf(forCounts, newCapacity * SYMBOLS);
+		revCounts = Arrays.copyOf(revCounts, newCapacity * SYMBOLS);
+		flags = Arrays.copyOf(flags, newCapacity);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getPosition(int row) {
+		return positions[row];
+	}
+
+	@Override
+	public int getForCount(int row, int symbol) {
+		return forCounts[row * SYMBOLS + symbol];
+	}
+
+	@Override
+	public int getRevCount(int row, int symbol) {
+		return revCounts[row * SYMBOLS + symbol];
+	}
+
+	@Override
+	public int getCount(int row, int symbol) {
+		final int index = row * SYMBOLS + symbol;
+		return forCounts[index] + revCounts[index];
+	}
+
+	@Override
+	public int getCoverage(int row) {
+		final int offset = row * SYMBOLS;
+		int sum = 0;
+		for (int i = offset; i < offset + SYMBOLS; i++) {
+			sum += forCounts[i] + revCounts[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * @return the highest count (forward + reverse) of a single symbol
+	 */
+	int getMaxCount(int row) {
+		final int offset = row * SYMBOLS;
+		int max = 0;
+		for (int i = offset; i < offset + SYMBOLS; i++) {
+			max = Math.max(forCounts[i] + revCounts[i], max);
+		}
+		return max;
+	}
+
+	@Override
+	public boolean isBreakpointPosition(int row) {
+		return flags[row] != 0;
+	}
+}
@@ -0,0 +1,220 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Amplicon primer scheme read from a BED file (reference, start, end, name, pool, strand). The direction of a primer
+ * is taken from the strand column, or from _LEFT/_RIGHT in the name when there is no strand column. Primers with the
+ * same name before _LEFT/_RIGHT belong to the same amplicon. The primers of a reference are kept in an {@link Index}
+ * for fast lookup of the primer at a read end.
+ *
+ * @author pdekker
+ *
+ */
+final class PrimerScheme {
+	private final Map<String, Index> indexes;
+
+	private PrimerScheme(Map<String, Index> indexes) {
+		this.indexes = Collections.unmodifiableMap(indexes);
+	}
+
+	/**
+	 * @return the primers of the reference, the primers of the only reference in the scheme when the name doesn't
+	 *         match, or null when there are none
+	 */
+	Index getIndex(String reference) {
+		final Index index = indexes.get(reference);
+		if (index == null && indexes.size() == 1) {
+			return indexes.values().iterator().next();
+		}
+		return index;
+	}
+
+	static PrimerScheme read(Path file) throws IOException {
+		final Map<String, List<int[]>> left = new LinkedHashMap<>();
+		final Map<String, List<int[]>> right = new LinkedHashMap<>();
+		final Map<String, Map<String, int[]>> amplicons = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track")
+						|| line.startsWith("browser")) {
+					continue;
+				}
+				final String[] fields = line.split("\t");
+				if (fields.length < 3) {
+					throw new IOException("Line " + lineNumber + " of " + file + " has less than 3 columns");
+				}
+				final int[] primer;
+				try {
+					primer = new int[] { Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()) };
+				} catch (final NumberFormatException e) {
+					throw new IOException("Line " + lineNumber + " of " + file + " has no valid start and end");
+				}
+				final String name = fields.length > 3 ? fields[3].trim() : "";
+				final String strand = fields.length > 5 ? fields[5].trim() : "";
+				final int leftIndex = name.toUpperCase().lastIndexOf("_LEFT");
+				final int rightIndex = name.toUpperCase().lastIndexOf("_RIGHT");
+				final boolean isLeft = strand.equals("+") || strand.isEmpty() && leftIndex >= 0;
+				final boolean isRight = strand.equals("-") || strand.isEmpty() && rightIndex >= 0;
+				if (isLeft == isRight) {
+					throw new IOException("Direction of primer on line " + lineNumber + " of " + file + " is unknown");
+				}
+				(isLeft ? left : right).computeIfAbsent(fields[0], r -> new ArrayList<>()).add(primer);
+
+				// the amplicon insert lies between the innermost left and right primer
+				final int nameEnd = isLeft ? leftIndex : rightIndex;
+				if (nameEnd > 0) {
+					final Map<String, int[]> inserts = amplicons.computeIfAbsent(fields[0], r -> new LinkedHashMap<>());
+					final int[] insert = inserts.computeIfAbsent(name.substring(0, nameEnd),
+							a -> new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE });
+					if (isLeft) {
+						insert[0] = Math.max(insert[0], primer[1]);
+					} else {
+						insert[1] = Math.min(insert[1], primer[0]);
+					}
+				}
+			}
+		}
+		final Map<String, Index> indexes = new LinkedHashMap<>();
+		for (final String reference : left.keySet()) {
+			indexes.put(reference, new Index(left.get(reference), right.getOrDefault(reference, new ArrayList<>()),
+					amplicons.getOrDefault(reference, new LinkedHashMap<>())));
+		}
+		for (final String reference : right.keySet()) {
+			indexes.computeIfAbsent(reference,
+					r -> new Index(new ArrayList<>(), right.get(r), amplicons.getOrDefault(r, new LinkedHashMap<>())));
+		}
+		return new PrimerScheme(indexes);
+	}
+
+	/**
+	 * Primers of one reference sorted on start position. A read start (end) is matched with a left (right) primer
+	 * when it lies within the primer, with a small tolerance for bases clipped by the mapper. The amplicons with both
+	 * a left and a right primer are kept as inserts [start, end) between the primers, sorted on start position.
+	 */
+	static final class Index {
+		private static final int TOLERANCE = 2;
+
+		private final int[] leftStarts;
+		private final int[] leftEnds;
+		private final int[] rightStarts;
+		private final int[] rightEnds;
+		private final int maxLength;
+		private final String[] ampliconNames;
+		private final int[] ampliconStarts;
+		private final int[] ampliconEnds;
+
+		private Index(List<int[]> left, List<int[]> right, Map<String, int[]> amplicons) {
+			left.sort((p1, p2) -> Integer.compare(p1[0], p2[0]));
+			right.sort((p1, p2) -> Integer.compare(p1[0], p2[0]));
+			leftStarts = left.stream().mapToInt(p -> p[0]).toArray();
+			leftEnds = left.stream().mapToInt(p -> p[1]).toArray();
+			rightStarts = right.stream().mapToInt(p -> p[0]).toArray();
+			rightEnds = right.stream().mapToInt(p -> p[1]).toArray();
+			int max = 0;
+			for (int i = 0; i < leftStarts.length; i++) {
+				max = Math.max(max, leftEnds[i] - leftStarts[i]);
+			}
+			for (int i = 0; i < rightStarts.length; i++) {
+				max = Math.max(max, rightEnds[i] - rightStarts[i]);
+			}
+			maxLength = max + TOLERANCE;
+
+			final List<String> names = new ArrayList<>();
+			for (final Map.Entry<String, int[]> e : amplicons.entrySet()) {
+				if (e.getValue()[0] < e.getValue()[1] && e.getValue()[0] != Integer.MIN_VALUE
+						&& e.getValue()[1] != Integer.MAX_VALUE) {
+					names.add(e.getKey());
+				}
+			}
+			names.sort((a1, a2) -> Integer.compare(amplicons.get(a1)[0], amplicons.get(a2)[0]));
+			ampliconNames = names.toArray(new String[names.size()]);
+			ampliconStarts = names.stream().mapToInt(a -> amplicons.get(a)[0]).toArray();
+			ampliconEnds = names.stream().mapToInt(a -> amplicons.get(a)[1]).toArray();
+		}
+
+		int getAmpliconCount() {
+			return ampliconNames.length;
+		}
+
+		String getAmpliconName(int amplicon) {
+			return ampliconNames[amplicon];
+		}
+
+		int getAmpliconStart(int amplicon) {
+			return ampliconStarts[amplicon];
+		}
+
+		/**
+		 * @return exclusive end of the amplicon insert
+		 */
+		int getAmpliconEnd(int amplicon) {
+			return ampliconEnds[amplicon];
+		}
+
+		/**
+		 * @return end of the left primer the read starts in, {@link Integer#MIN_VALUE} when there is none
+		 */
+		int getLeftPrimerEnd(int readStart) {
+			int end = Integer.MIN_VALUE;
+			for (int i = upperBound(leftStarts, readStart + TOLERANCE) - 1; i >= 0
+					&& leftStarts[i] > readStart - maxLength; i--) {
+				if (leftEnds[i] > readStart) {
+					end = Math.max(end, leftEnds[i]);
+				}
+			}
+			return end;
+		}
+
+		/**
+		 * @param readEnd exclusive end of the read
+		 * @return start of the right primer the read ends in, {@link Integer#MAX_VALUE} when there is none
+		 */
+		int getRightPrimerStart(int readEnd) {
+			int start = Integer.MAX_VALUE;
+			for (int i = upperBound(rightStarts, readEnd - 1) - 1; i >= 0
+					&& rightStarts[i] > readEnd - 1 - maxLength; i--) {
+				if (rightEnds[i] + TOLERANCE >= readEnd) {
+					start = Math.min(start, rightStarts[i]);
+				}
+			}
+			return start;
+		}
+
+		/**
+		 * @param readStart start of the read on the reference, including its unaligned bases
+		 * @param readEnd   exclusive end of the read on the reference, including its unaligned bases
+		 * @return true when the position of the read lies in the primer at one of the read ends
+		 */
+		boolean isPrimer(int position, int readStart, int readEnd) {
+			return position < getLeftPrimerEnd(readStart) || position >= getRightPrimerStart(readEnd);
+		}
+
+		/**
+		 * @return index of the first value larger than key
+		 */
+		private static int upperBound(int[] values, int key) {
+			int index = Arrays.binarySearch(values, key);
+			if (index < 0) {
+				return -index - 1;
+			}
+			while (index < values.length && values[index] == key) {
+				index++;
+			}
+			return index;
+		}
+	}
+}
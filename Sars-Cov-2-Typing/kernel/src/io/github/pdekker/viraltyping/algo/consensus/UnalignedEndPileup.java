@@ -0,0 +1,62 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+/**
+ * Pileup of the reads beyond an anchor position at one end of the reference, mostly their unaligned ends. Row
+ * {@code offset - 1} holds the counts of the position {@code offset} steps beyond the anchor, in the direction of the
+ * end. The rows are added when the first read reaches them, so the store is as long as the longest read end and no
+ * objects are created per base.
+ *
+ * @author pdekker
+ *
+ */
+final class UnalignedEndPileup {
+	private final PileupStore store = new PileupStore(0);
+	private int anchor;
+	private int direction;
+
+	/**
+	 * @param anchor    last position that is not part of the end
+	 * @param direction -1 for the start of the reference, 1 for the end
+	 */
+	void reset(int anchor, int direction) {
+		store.clear();
+		this.anchor = anchor;
+		this.direction = direction;
+	}
+
+	/**
+	 * @param symbol symbol index in the alphabet, -1 for a gap and everything above 3 is counted as N
+	 */
+	void increment(int offset, byte symbol, boolean reverse) {
+		while (store.size() < offset) {
+			store.addRow(anchor + direction * (store.size() + 1));
+		}
+		store.increment(offset - 1, Math.min(symbol, 4) + 1, reverse);
+	}
+
+	/**
+	 * @return the largest offset with counts
+	 */
+	int length() {
+		return store.size();
+	}
+
+	int getPosition(int offset) {
+		return anchor + direction * offset;
+	}
+
+	int getMaxCount(int offset) {
+		return store.getMaxCount(offset - 1);
+	}
+
+	/**
+	 * Appends the counts of the offset as a new row to the target store, an empty row when no read reaches it.
+	 */
+	void copyTo(int offset, PileupStore target) {
+		if (offset > store.size()) {
+			target.addRow(getPosition(offset));
+		} else {
+			target.addRow(store, offset - 1);
+		}
+	}
+}
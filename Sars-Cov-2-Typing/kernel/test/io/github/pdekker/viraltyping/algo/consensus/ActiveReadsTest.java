@@ -0,0 +1,85 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class ActiveReadsTest {
+	private final byte[] qualities = { 30, 31, 32, 2, 33, 34, 35, 36, 37, 38 };
+
+	@Test
+	public void readContinuesInTheNextColumn() {
+		final ActiveReads reads = new ActiveReads();
+		reads.startPosition();
+		final ActiveReads.Read first = reads.get(qualities, 0, 10, false, 3);
+		assertFalse(first.isContinued());
+		first.leftPrimerEnd = 42;
+		reads.startPosition();
+		// a deletion of the read keeps the read position
+		final ActiveReads.Read second = reads.get(qualities, 0, 10, false, 3);
+		assertSame(first, second);
+		assertTrue(second.isContinued());
+		assertEquals(42, second.leftPrimerEnd);
+	}
+
+	@Test
+	public void otherReadWithTheSameQualitiesStartsOver() {
+		final ActiveReads reads = new ActiveReads();
+		reads.startPosition();
+		reads.get(qualities, 0, 10, false, 3);
+		reads.startPosition();
+		assertFalse(reads.get(qualities, 0, 10, false, 6).isContinued());
+		reads.startPosition();
+		assertFalse(reads.get(qualities, 0, 10, true, 7).isContinued());
+		reads.startPosition();
+		assertFalse(reads.get(qualities, 1, 10, true, 8).isContinued());
+	}
+
+	@Test
+	public void readNotSeenInAColumnIsDone() {
+		final ActiveReads reads = new ActiveReads();
+		reads.startPosition();
+		reads.get(qualities, 0, 10, false, 3);
+		reads.startPosition();
+		reads.startPosition();
+		assertFalse(reads.get(qualities, 0, 10, false, 4).isContinued());
+	}
+
+	@Test
+	public void sharedQualitiesAreNotRecognized() {
+		final ActiveReads reads = new ActiveReads();
+		reads.startPosition();
+		assertNotNull(reads.get(qualities, 0, 10, false, 3));
+		assertNull(reads.get(qualities, 0, 10, false, 5));
+		assertEquals(1, reads.getUnrecognizedCount());
+		// both reads start over in the next column
+		reads.startPosition();
+		final ActiveReads.Read read = reads.get(qualities, 0, 10, false, 4);
+		assertFalse(read.isContinued());
+		reads.startPosition();
+		assertTrue(reads.get(qualities, 0, 10, false, 5).isContinued());
+		assertNull(reads.get(null, 0, 10, false, 5));
+		assertEquals(2, reads.getUnrecognizedCount());
+	}
+
+	@Test
+	public void prefixSumsEqualTheDirectSum() {
+		final ActiveReads reads = new ActiveReads();
+		reads.startPosition();
+		final ActiveReads.Read read = reads.get(qualities, 0, 10, false, 0);
+		for (int start = 0; start < qualities.length; start++) {
+			for (int end = start; end <= qualities.length; end++) {
+				assertEquals(ActiveReads.sumQualities(qualities, start, end), read.sumQualities(qualities, start, end));
+			}
+		}
+	}
+}
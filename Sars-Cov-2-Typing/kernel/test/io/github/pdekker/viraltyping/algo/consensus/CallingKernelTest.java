@@ -0,0 +1,102 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class CallingKernelTest {
+	// A, C, G, T and N as in the DNA alphabet, the ambiguity symbols follow N
+	static final String SYMBOLS = "ACGTNRYKMSWBDHV";
+	static final byte N = (byte) SYMBOLS.indexOf('N');
+	private static final String IUPAC_CODES = "NACMGRSVTWYHKDBN";
+
+	static byte[] createIupacTable() {
+		final byte[] table = new byte[IUPAC_CODES.length()];
+		for (int mask = 0; mask < table.length; mask++) {
+			table[mask] = (byte) SYMBOLS.indexOf(IUPAC_CODES.charAt(mask));
+		}
+		return table;
+	}
+
+	/**
+	 * @param counts forward counts of gap, A, C, G, T, N
+	 */
+	static PileupStore createStore(int[]... counts) {
+		final PileupStore store = new PileupStore(counts.length);
+		for (int position = 0; position < counts.length; position++) {
+			store.add(position, counts[position], new int[PileupStore.SYMBOLS], false, false);
+		}
+		return store;
+	}
+
+	private static CallingKernel call(CallingKernel.Resolution resolution, int... counts) {
+		final CallingKernel kernel = new CallingKernel(0.2, 10, resolution, createIupacTable(), N);
+		kernel.call(createStore(counts), 0);
+		return kernel;
+	}
+
+	@Test
+	public void callsTheOnlyPassingSymbol() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.VOTE, 0, 2, 0, 95, 3, 0);
+		assertEquals(SYMBOLS.indexOf('G'), kernel.getConsensus());
+		assertFalse(kernel.isConflict());
+		assertEquals(100, kernel.getCoverage());
+	}
+
+	@Test
+	public void lowCoverageIsUnknown() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.VOTE, 0, 9, 0, 0, 0, 0);
+		assertTrue(kernel.isUnknown());
+		assertEquals(0, kernel.getPassingCount());
+	}
+
+	@Test
+	public void voteTieGoesToTheFirstSymbol() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.VOTE, 0, 0, 50, 0, 50, 0);
+		assertTrue(kernel.isConflict());
+		assertEquals(SYMBOLS.indexOf('C'), kernel.getConsensus());
+	}
+
+	@Test
+	public void voteTieWithGapIsAGap() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.VOTE, 50, 50, 0, 0, 0, 0);
+		assertTrue(kernel.isConflict());
+		assertTrue(kernel.isGap());
+	}
+
+	@Test
+	public void unknownResolutionCallsN() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.UNKNOWN, 0, 60, 40, 0, 0, 0);
+		assertTrue(kernel.isUnknown());
+		assertFalse(kernel.isGap());
+	}
+
+	@Test
+	public void ambiguousResolutionUsesTheIupacCodeOfTheMask() {
+		assertEquals(SYMBOLS.indexOf('R'), call(CallingKernel.Resolution.AMBIGUOUS, 0, 50, 0, 50, 0, 0).getConsensus());
+		assertEquals(SYMBOLS.indexOf('Y'), call(CallingKernel.Resolution.AMBIGUOUS, 0, 0, 50, 0, 50, 0).getConsensus());
+		assertEquals(SYMBOLS.indexOf('B'),
+				call(CallingKernel.Resolution.AMBIGUOUS, 0, 0, 34, 33, 33, 0).getConsensus());
+	}
+
+	@Test
+	public void ambiguousResolutionIgnoresTheGap() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.AMBIGUOUS, 40, 30, 0, 30, 0, 0);
+		assertEquals(3, kernel.getPassingCount());
+		assertFalse(kernel.isGap());
+		assertEquals(SYMBOLS.indexOf('R'), kernel.getConsensus());
+	}
+
+	@Test
+	public void symbolsAtTheFrequencyThresholdDontPass() {
+		final CallingKernel kernel = call(CallingKernel.Resolution.VOTE, 0, 80, 20, 0, 0, 0);
+		assertFalse(kernel.isPassing(2));
+		assertFalse(kernel.isConflict());
+	}
+}
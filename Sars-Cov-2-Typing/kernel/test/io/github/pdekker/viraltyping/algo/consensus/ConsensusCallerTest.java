@@ -0,0 +1,140 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class ConsensusCallerTest {
+	private static final int FLANK = 10;
+
+	private static final class RecordingSink implements ConsensusCaller.Sink {
+		private final StringBuilder symbols = new StringBuilder();
+		private final List<int[]> clusters = new ArrayList<>();
+		private final List<int[]> lowCoverage = new ArrayList<>();
+
+		@Override
+		public void addSymbols(byte[] buffer, int length) {
+			for (int i = 0; i < length; i++) {
+				symbols.append(CallingKernelTest.SYMBOLS.charAt(buffer[i]));
+			}
+		}
+
+		@Override
+		public void addConflict(int position, CallingKernel kernel) {
+		}
+
+		@Override
+		public void addInsertion(InsertionColumns columns, int from, int to, ConflictIndex records) {
+		}
+
+		@Override
+		public void addLowCoverage(int start, int end, long coverage) {
+			lowCoverage.add(new int[] { start, end });
+		}
+
+		@Override
+		public void addBreakpointCluster(int start, int end) {
+			clusters.add(new int[] { start, end });
+		}
+	}
+
+	/**
+	 * @return the sink after calling rows of 20 A's, with breakpoints at the given rows
+	 */
+	private static RecordingSink call(int rows, int... breakpoints) {
+		return callWithFlank(rows, FLANK, breakpoints);
+	}
+
+	private static RecordingSink callWithFlank(int rows, int flank, int... breakpoints) {
+		final PileupStore store = new PileupStore(rows);
+		final int[] counts = { 0, 20, 0, 0, 0, 0 };
+		final int[] none = new int[PileupStore.SYMBOLS];
+		int b = 0;
+		for (int row = 0; row < rows; row++) {
+			final boolean breakpoint = b < breakpoints.length && breakpoints[b] == row;
+			if (breakpoint) {
+				b++;
+			}
+			store.add(row, counts, none, breakpoint, false);
+		}
+		final RecordingSink sink = new RecordingSink();
+		final CallingKernel kernel = new CallingKernel(0.2, 10, CallingKernel.Resolution.VOTE,
+				CallingKernelTest.createIupacTable(), CallingKernelTest.N);
+		final ConsensusCaller caller = new ConsensusCaller(kernel, 10, true, null, true, flank, sink);
+		caller.accept(store);
+		caller.finish();
+		assertEquals(rows, sink.symbols.length());
+		return sink;
+	}
+
+	@Test
+	public void breakpointsCloseToTheEndsAreIgnored() {
+		final RecordingSink sink = call(200, 10, 24, 100, 175, 180);
+		assertEquals(1, sink.clusters.size());
+		assertArrayEquals(new int[] { 100 - FLANK, 101 + FLANK }, sink.clusters.get(0));
+	}
+
+	@Test
+	public void breakpointWithEnoughRowsAfterItIsKept() {
+		final RecordingSink sink = call(200, 25, 173);
+		assertEquals(2, sink.clusters.size());
+		assertArrayEquals(new int[] { 25 - FLANK, 26 + FLANK }, sink.clusters.get(0));
+		assertArrayEquals(new int[] { 173 - FLANK, 174 + FLANK }, sink.clusters.get(1));
+	}
+
+	@Test
+	public void breakpointsWithOverlappingFlanksAreOneCluster() {
+		final RecordingSink sink = call(300, 60, 75, 95, 150);
+		assertEquals(2, sink.clusters.size());
+		assertArrayEquals(new int[] { 60 - FLANK, 96 + FLANK }, sink.clusters.get(0));
+		assertArrayEquals(new int[] { 150 - FLANK, 151 + FLANK }, sink.clusters.get(1));
+	}
+
+	@Test
+	public void ringBufferHoldsABreakpointInEveryRow() {
+		final int[] breakpoints = new int[100];
+		for (int i = 0; i < breakpoints.length; i++) {
+			breakpoints[i] = 30 + i;
+		}
+		final RecordingSink sink = call(200, breakpoints);
+		assertEquals(1, sink.clusters.size());
+		assertArrayEquals(new int[] { 30 - FLANK, 130 + FLANK }, sink.clusters.get(0));
+	}
+
+	@Test
+	public void clusterFlanksAreClampedToTheConsensus() {
+		final RecordingSink sink = callWithFlank(80, 50, 30);
+		assertArrayEquals(new int[] { 0, 80 }, sink.clusters.get(0));
+	}
+
+	@Test
+	public void symbolsAndLowCoverage() {
+		final PileupStore store = new PileupStore(30);
+		final int[] none = new int[PileupStore.SYMBOLS];
+		for (int row = 0; row < 30; row++) {
+			final int coverage = row >= 10 && row < 15 ? 5 : 20;
+			store.add(row, new int[] { 0, 0, 0, coverage, 0, 0 }, none, false, false);
+		}
+		// a deletion is not part of the consensus
+		store.add(30, new int[] { 20, 0, 0, 0, 0, 0 }, none, false, false);
+		final RecordingSink sink = new RecordingSink();
+		final CallingKernel kernel = new CallingKernel(0.2, 10, CallingKernel.Resolution.VOTE,
+				CallingKernelTest.createIupacTable(), CallingKernelTest.N);
+		final ConsensusCaller caller = new ConsensusCaller(kernel, 10, false, null, true, FLANK, sink);
+		caller.accept(store);
+		caller.finish();
+		assertEquals("GGGGGGGGGGNNNNNGGGGGGGGGGGGGGG", sink.symbols.toString());
+		assertEquals(1, sink.lowCoverage.size());
+		assertArrayEquals(new int[] { 10, 15 }, sink.lowCoverage.get(0));
+		assertEquals(5, caller.getNRuns().getTotalLength());
+		assertEquals(20, caller.getDepths().getMedian());
+	}
+}
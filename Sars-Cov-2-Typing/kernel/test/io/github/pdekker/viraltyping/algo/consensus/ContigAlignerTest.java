@@ -0,0 +1,81 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class ContigAlignerTest {
+	private final byte[] consensus = LocalAssemblerTest.createSequence(600, 7);
+
+	@Test
+	public void contigWithDeletionIsPatched() {
+		final byte[] contig = new byte[195];
+		System.arraycopy(consensus, 200, contig, 0, 100);
+		System.arraycopy(consensus, 305, contig, 100, 95);
+		final ContigAligner aligner = new ContigAligner();
+		final ContigAligner.Patch patch = aligner.align(consensus, contig);
+		assertNotNull(patch);
+		assertEquals(200, patch.start);
+		assertEquals(400, patch.end);
+		assertEquals(LocalAssemblerTest.toString(contig), LocalAssemblerTest.toString(patch.bases));
+		assertEquals(0, aligner.getRejectedCount());
+	}
+
+	@Test
+	public void contigWithInsertionOverhangingTheConsensus() {
+		final byte[] contig = new byte[105];
+		System.arraycopy(consensus, 520, contig, 0, 40);
+		Arrays.fill(contig, 40, 45, (byte) 2);
+		System.arraycopy(consensus, 560, contig, 45, 40);
+		// the last 20 bases lie after the end of the consensus
+		Arrays.fill(contig, 85, 105, (byte) 1);
+		final ContigAligner.Patch patch = new ContigAligner().align(consensus, contig);
+		assertNotNull(patch);
+		assertEquals(520, patch.start);
+		assertEquals(600, patch.end);
+		assertEquals(LocalAssemblerTest.toString(Arrays.copyOf(contig, 85)),
+				LocalAssemblerTest.toString(patch.bases));
+	}
+
+	@Test
+	public void identicalContigIsNoPatch() {
+		final ContigAligner aligner = new ContigAligner();
+		assertNull(aligner.align(consensus, Arrays.copyOfRange(consensus, 100, 300)));
+		assertEquals(0, aligner.getRejectedCount());
+	}
+
+	@Test
+	public void unrelatedContigCantBePlaced() {
+		final ContigAligner aligner = new ContigAligner();
+		assertNull(aligner.align(consensus, LocalAssemblerTest.createSequence(200, 8)));
+		assertEquals(0, aligner.getRejectedCount());
+	}
+
+	@Test
+	public void contigBelowTheIdentityIsRejected() {
+		final byte[] contig = Arrays.copyOfRange(consensus, 200, 400);
+		// 30 substitutions in the middle, the ends still anchor the contig
+		for (int i = 40; i < 160; i += 4) {
+			contig[i] = (byte) ((contig[i] + 1) % 4);
+		}
+		final ContigAligner aligner = new ContigAligner();
+		assertNull(aligner.align(consensus, contig));
+		assertEquals(1, aligner.getRejectedCount());
+	}
+
+	@Test
+	public void evalueDecreasesWithTheScore() {
+		assertTrue(ContigAligner.getEvalue(10, 30_000, 500) > ContigAligner.MAX_EVALUE);
+		assertTrue(ContigAligner.getEvalue(100, 30_000, 500) < ContigAligner.MAX_EVALUE);
+		assertTrue(ContigAligner.getEvalue(50, 30_000, 500) > ContigAligner.getEvalue(50, 1_000, 500));
+	}
+}
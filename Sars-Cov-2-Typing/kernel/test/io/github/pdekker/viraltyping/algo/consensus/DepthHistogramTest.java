@@ -0,0 +1,65 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class DepthHistogramTest {
+
+	@Test
+	public void emptyHistogram() {
+		final DepthHistogram histogram = new DepthHistogram();
+		assertTrue(histogram.isEmpty());
+		assertEquals(0, histogram.getMedian());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0.0, histogram.getBreadth(1), 0.0);
+	}
+
+	@Test
+	public void percentilesOfLowDepthsAreExact() {
+		final DepthHistogram histogram = new DepthHistogram();
+		for (int depth = 1; depth <= 100; depth++) {
+			histogram.add(depth);
+		}
+		assertEquals(50, histogram.getMedian());
+		assertEquals(1, histogram.getPercentile(0.0));
+		assertEquals(10, histogram.getPercentile(0.1));
+		assertEquals(95, histogram.getPercentile(0.95));
+		assertEquals(100, histogram.getPercentile(1.0));
+		assertEquals(0.5, histogram.getBreadth(51), 1e-9);
+		assertEquals(50.5, histogram.getAverage(), 1e-9);
+	}
+
+	@Test
+	public void percentilesOfHighDepthsAreWithinTheBucketWidth() {
+		final DepthHistogram histogram = new DepthHistogram();
+		for (int depth = 10_000; depth < 30_000; depth++) {
+			histogram.add(depth);
+		}
+		final int median = histogram.getMedian();
+		assertTrue(median <= 20_000 && median > 20_000 - 20_000 / 64);
+		assertEquals(10_000, histogram.getPercentile(0.0));
+		assertEquals(29_999, histogram.getMax());
+	}
+
+	@Test
+	public void mergeAddsThePositions() {
+		final DepthHistogram first = new DepthHistogram();
+		final DepthHistogram second = new DepthHistogram();
+		for (int i = 0; i < 10; i++) {
+			first.add(5);
+			second.add(15);
+		}
+		first.merge(second);
+		assertEquals(20, first.getCount());
+		assertEquals(5, first.getMin());
+		assertEquals(15, first.getMax());
+		assertEquals(5, first.getMedian());
+		assertEquals(15, first.getPercentile(0.51));
+	}
+}
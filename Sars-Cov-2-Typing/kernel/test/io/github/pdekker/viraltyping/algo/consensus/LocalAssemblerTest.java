@@ -0,0 +1,84 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author pdekker
+ *
+ */
+public class LocalAssemblerTest {
+
+	static byte[] createSequence(int length, long seed) {
+		final Random random = new Random(seed);
+		final byte[] sequence = new byte[length];
+		for (int i = 0; i < length; i++) {
+			sequence[i] = (byte) random.nextInt(4);
+		}
+		return sequence;
+	}
+
+	static String toString(byte[] symbols) {
+		final StringBuilder result = new StringBuilder();
+		for (final byte symbol : symbols) {
+			result.append("ACGTN".charAt(symbol));
+		}
+		return result.toString();
+	}
+
+	@Test
+	public void reverseComplementKeepsOtherSymbols() {
+		assertArrayEquals(new byte[] { 0, 4, 2, 3 }, LocalAssembler.reverseComplement(new byte[] { 0, 1, 4, 3 }));
+	}
+
+	@Test
+	public void assemblesOverlappingReadsOfBothStrands() {
+		final byte[] sequence = createSequence(300, 1);
+		final LocalAssembler assembler = new LocalAssembler();
+		for (int start = 0; start + 100 <= sequence.length; start += 10) {
+			final byte[] read = Arrays.copyOfRange(sequence, start, start + 100);
+			assembler.addRead(start % 20 == 0 ? read : LocalAssembler.reverseComplement(read));
+		}
+		final List<byte[]> contigs = assembler.assemble();
+		assertEquals(1, contigs.size());
+		final String contig = toString(contigs.get(0));
+		final String reference = toString(sequence);
+		assertTrue(contig.length() >= 250);
+		assertTrue(reference.contains(contig)
+				|| reference.contains(toString(LocalAssembler.reverseComplement(contigs.get(0)))));
+	}
+
+	@Test
+	public void rareKmersAreNotUsed() {
+		final byte[] sequence = createSequence(200, 2);
+		final LocalAssembler assembler = new LocalAssembler(LocalAssembler.DEFAULT_K, 3, 10);
+		assembler.addRead(sequence);
+		assembler.addRead(sequence);
+		assertTrue(assembler.assemble().isEmpty());
+	}
+
+	@Test
+	public void unknownSymbolsBreakTheKmers() {
+		final byte[] sequence = createSequence(200, 3);
+		for (int i = 20; i < sequence.length; i += 20) {
+			sequence[i] = 4;
+		}
+		final LocalAssembler assembler = new LocalAssembler();
+		for (int i = 0; i < 5; i++) {
+			assembler.addRead(sequence);
+		}
+		assertTrue(assembler.assemble().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void kmerTooLong() {
+		new LocalAssembler(32, 3, 10);
+	}
+}
@@ -0,0 +1,103 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author pdekker
+ *
+ */
+public class PileupSnapshotTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private static PileupStore createStore(int rows, int maxCount, long seed) {
+		final Random random = new Random(seed);
+		final PileupStore store = new PileupStore(rows);
+		final int[] forCounts = new int[PileupStore.SYMBOLS];
+		final int[] revCounts = new int[PileupStore.SYMBOLS];
+		for (int row = 0; row < rows; row++) {
+			for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+				forCounts[symbol] = random.nextInt(maxCount + 1);
+				revCounts[symbol] = random.nextInt(maxCount + 1);
+			}
+			forCounts[random.nextInt(PileupStore.SYMBOLS)] = maxCount;
+			store.add(row / 2, forCounts, revCounts, random.nextInt(10) == 0, random.nextInt(10) == 0);
+		}
+		return store;
+	}
+
+	private static void assertRows(PileupRows expected, PileupRows actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int row = 0; row < expected.size(); row++) {
+			assertEquals(expected.getPosition(row), actual.getPosition(row));
+			assertEquals(expected.isBreakpointPosition(row), actual.isBreakpointPosition(row));
+			assertEquals(expected.getCoverage(row), actual.getCoverage(row));
+			for (int symbol = 0; symbol < PileupStore.SYMBOLS; symbol++) {
+				assertEquals(expected.getForCount(row, symbol), actual.getForCount(row, symbol));
+				assertEquals(expected.getRevCount(row, symbol), actual.getRevCount(row, symbol));
+				assertEquals(expected.getCount(row, symbol), actual.getCount(row, symbol));
+			}
+		}
+	}
+
+	@Test
+	public void roundTripInEveryCountWidth() throws IOException {
+		final PileupStore bytes = createStore(500, 0xFF, 1);
+		final PileupStore chars = createStore(300, 0xFFFF, 2);
+		final PileupStore ints = createStore(200, 1_000_000, 3);
+		final PileupStore empty = new PileupStore(0);
+		final Path file = folder.newFile("snapshot.pileup").toPath();
+		new PileupSnapshot("MN908947.3", 29_903, Arrays.asList(bytes, chars, ints, empty), 12, 34).write(file);
+
+		final PileupSnapshot snapshot = PileupSnapshot.read(file);
+		assertEquals("MN908947.3", snapshot.getReferenceName());
+		assertEquals(29_903, snapshot.getReferenceLength());
+		assertTrue(snapshot.hasExtension());
+		assertEquals(12, snapshot.getExtensionLeft());
+		assertEquals(34, snapshot.getExtensionRight());
+		assertEquals(4, snapshot.getStores().size());
+		assertRows(bytes, snapshot.getStores().get(0));
+		assertRows(chars, snapshot.getStores().get(1));
+		assertRows(ints, snapshot.getStores().get(2));
+		assertRows(empty, snapshot.getStores().get(3));
+	}
+
+	@Test
+	public void roundTripWithoutExtension() throws IOException {
+		final PileupStore store = createStore(100, 50, 4);
+		final Path file = folder.newFile("snapshot.pileup").toPath();
+		PileupSnapshot.withoutExtension("ref", 100, Arrays.asList(store)).write(file);
+
+		final PileupSnapshot snapshot = PileupSnapshot.read(file);
+		assertFalse(snapshot.hasExtension());
+		assertRows(store, snapshot.getStores().get(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedSnapshot() throws IOException {
+		final Path file = folder.newFile("snapshot.pileup").toPath();
+		PileupSnapshot.withoutExtension("ref", 100, Arrays.asList(createStore(100, 50, 5))).write(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 1);
+		}
+		PileupSnapshot.read(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void notASnapshot() throws IOException {
+		PileupSnapshot.read(folder.newFile("empty.pileup").toPath());
+	}
+}
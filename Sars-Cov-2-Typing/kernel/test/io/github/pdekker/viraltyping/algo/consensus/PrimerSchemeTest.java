@@ -0,0 +1,90 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author pdekker
+ *
+ */
+public class PrimerSchemeTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private PrimerScheme read(String bed) throws IOException {
+		final Path file = folder.newFile("scheme.bed").toPath();
+		Files.write(file, bed.getBytes(StandardCharsets.UTF_8));
+		return PrimerScheme.read(file);
+	}
+
+	@Test
+	public void readsTheAmpliconsBetweenThePrimers() throws IOException {
+		final PrimerScheme scheme = read("# ARTIC style\n" //
+				+ "ref\t30\t54\tnCoV_1_LEFT\t1\t+\n" //
+				+ "ref\t385\t410\tnCoV_1_RIGHT\t1\t-\n" //
+				+ "ref\t320\t342\tnCoV_2_LEFT\t2\t+\n" //
+				+ "ref\t704\t726\tnCoV_2_RIGHT\t2\t-\n");
+		final PrimerScheme.Index index = scheme.getIndex("ref");
+		assertEquals(2, index.getAmpliconCount());
+		assertEquals("nCoV_1", index.getAmpliconName(0));
+		assertEquals(54, index.getAmpliconStart(0));
+		assertEquals(385, index.getAmpliconEnd(0));
+		assertEquals(342, index.getAmpliconStart(1));
+		assertEquals(704, index.getAmpliconEnd(1));
+	}
+
+	@Test
+	public void directionFromTheNameWithoutStrandColumn() throws IOException {
+		final PrimerScheme.Index index = read("ref\t30\t54\tamp_1_LEFT\nref\t385\t410\tamp_1_RIGHT\n").getIndex("ref");
+		assertEquals(54, index.getLeftPrimerEnd(30));
+		assertEquals(385, index.getRightPrimerStart(410));
+	}
+
+	@Test
+	public void masksThePrimerAtTheReadEnds() throws IOException {
+		final PrimerScheme.Index index = read("ref\t30\t54\tamp_1_LEFT\t1\t+\nref\t385\t410\tamp_1_RIGHT\t1\t-\n")
+				.getIndex("ref");
+		// read from the left primer to the right primer
+		assertTrue(index.isPrimer(40, 30, 410));
+		assertFalse(index.isPrimer(54, 30, 410));
+		assertFalse(index.isPrimer(384, 30, 410));
+		assertTrue(index.isPrimer(385, 30, 410));
+		// a read that starts after the primer is not masked
+		assertFalse(index.isPrimer(100, 100, 300));
+		assertEquals(Integer.MIN_VALUE, index.getLeftPrimerEnd(100));
+		assertEquals(Integer.MAX_VALUE, index.getRightPrimerStart(300));
+	}
+
+	@Test
+	public void onlyReferenceIsUsedForOtherNames() throws IOException {
+		final PrimerScheme scheme = read("MN908947.3\t30\t54\tamp_1_LEFT\t1\t+\n");
+		assertEquals(54, scheme.getIndex("other").getLeftPrimerEnd(30));
+	}
+
+	@Test
+	public void unknownReferenceOfSeveral() throws IOException {
+		final PrimerScheme scheme = read("a\t30\t54\tamp_1_LEFT\t1\t+\nb\t30\t54\tamp_1_LEFT\t1\t+\n");
+		assertNull(scheme.getIndex("c"));
+	}
+
+	@Test(expected = IOException.class)
+	public void primerWithoutDirection() throws IOException {
+		read("ref\t30\t54\tprimer\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void lineWithoutPositions() throws IOException {
+		read("ref\tstart\tend\tamp_1_LEFT\t1\t+\n");
+	}
+}
@@ -53,7 +53,7 @@ public class ExtractConsensusAction extends AlgoAction {
 
 	@Override
 	protected int getOutputObjectsCount(final AlgoParameters parameters, final ClcObject[] selectedObjects) {
-		return 1;
+		return Math.max(1, selectedObjects.length);
 	}
 
 	@Override
@@ -88,6 +88,16 @@ public class ExtractConsensusAction extends AlgoAction {
 		qualityFiltersBuilder.append(qualityAppender, state, wcf);
 		qualityFiltersBuilder.decreaseIndent();
 
+		final WizardGroupBuilder performanceBuilder = variantStep.appendGroup(p.performanceGroup.getTitle());
+		performanceBuilder.appendWidget(wcf.widget(state, p.lowMemory));
+		performanceBuilder.appendWidget(wcf.widget(state, p.pileupSnapshot));
+		performanceBuilder.appendWidget(wcf.widget(state, p.pileupSnapshotFolder));
+
+		final WizardGroupBuilder sweepBuilder = variantStep.appendGroup(p.sweepGroup.getTitle());
+		sweepBuilder.appendWidget(wcf.widget(state, p.sweep));
+		sweepBuilder.appendWidget(wcf.widget(state, p.sweepMinCoverage));
+		sweepBuilder.appendWidget(wcf.widget(state, p.sweepMinFrequency));
+
 		variantStep.addConstraint(wcf.constraints(state).asSpecified(keyChecker,
 				p.secondPageGroup.extractContainedKeys(p.getKeyObjects())));
 
@@ -109,7 +119,7 @@ public class ExtractConsensusAction extends AlgoAction {
 		primerBuilder.appendWidget(wcf.widget(settingState, p.minCoverageExtend));
 		primerBuilder.appendWidget(wcf.widget(settingState, p.trimPrimers));
 		final WizardGroupAppender primerAppender = facade.createDefaultGroupAppender(keyChecker,
-				CreateSet.of(p.trimLinkerList));
+				CreateSet.<Key<?>>of(p.trimLinkerList, p.primerScheme));
 		primerAppender.append(primerBuilder, settingState, wcf);
 
 		final WizardGroupBuilder indelBuilder = settingsStep.appendGroup(p.inDelResolutionGroup.getTitle());
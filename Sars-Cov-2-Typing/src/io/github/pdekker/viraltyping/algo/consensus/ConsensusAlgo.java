@@ -1,8 +1,20 @@
 package io.github.pdekker.viraltyping.algo.consensus;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import com.clcbio.api.base.algorithm.Algo;
@@ -11,17 +23,10 @@ import com.clcbio.api.base.algorithm.AlgoHistoryTools;
 import com.clcbio.api.base.algorithm.AlgoOutputNamingTools;
 import com.clcbio.api.base.algorithm.CallableExecutor;
 import com.clcbio.api.base.algorithm.ChannelDescription;
+import com.clcbio.api.base.algorithm.Multiplicity;
 import com.clcbio.api.base.algorithm.OutputHandler;
-import com.clcbio.api.base.algorithm.SimpleAlgoExecuter;
 import com.clcbio.api.base.algorithm.TemporaryObjectManager;
-import com.clcbio.api.base.algorithm.blast.BlastFactory;
-import com.clcbio.api.base.algorithm.blast.BlastProgram;
-import com.clcbio.api.base.algorithm.blast.parameters.LocalBlastProgramAlgoParameters;
-import com.clcbio.api.base.algorithm.blast.parameters.impl.local.LocalBlastnParameters;
 import com.clcbio.api.base.algorithm.parameter.AlgoParameters;
-import com.clcbio.api.base.algorithm.parameter.interpreters.DeNovoV2Parameters;
-import com.clcbio.api.base.algorithm.parameter.interpreters.DeNovoWithMappingParameters;
-import com.clcbio.api.base.algorithm.parameter.interpreters.DeNovoWithMappingParameters.MappingMode;
 import com.clcbio.api.base.algorithm.parameter.interpreters.TrimInterpreter;
 import com.clcbio.api.base.algorithm.resource.NonExclusive;
 import com.clcbio.api.base.math.misc.DoubleInt;
@@ -32,21 +37,18 @@ import com.clcbio.api.base.session.ApplicationContext;
 import com.clcbio.api.base.session.FactoryManager;
 import com.clcbio.api.base.util.CreateList;
 import com.clcbio.api.base.util.iterator.BulkByteIterator;
-import com.clcbio.api.clc.datatypes.bioinformatics.blast.BlastHit;
-import com.clcbio.api.clc.datatypes.bioinformatics.blast.BlastHsp;
-import com.clcbio.api.clc.datatypes.bioinformatics.blast.BlastOutput;
 import com.clcbio.api.free.datatypes.ClcObject;
+import com.clcbio.api.free.datatypes.bioinformatics.gis.Chromosome;
+import com.clcbio.api.free.datatypes.bioinformatics.gis.Genome;
+import com.clcbio.api.free.datatypes.bioinformatics.gis.TrackFactory;
 import com.clcbio.api.free.datatypes.bioinformatics.gis.track.SymbolTrack;
+import com.clcbio.api.free.datatypes.bioinformatics.gis.track.VariantTrack;
+import com.clcbio.api.free.datatypes.bioinformatics.gis.track.VariantTrackBuilder;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.BasicSequence;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.NucleotideSequence;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.Sequence;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.SequenceFactory;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.alphabet.AlphabetTools;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.feature.Feature;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.list.SequenceList;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.list.SequenceListBuilder;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.list.SequenceListBuilderByReadGroup;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.readgroup.ReadGroup;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.region.Region;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.symbol.SymbolSource;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.MatchIntersection;
@@ -57,35 +59,41 @@ import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.PairedEndLoc
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.ReadMapping;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.ReadMappingObject;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.ScatteredLocalAlignment;
-import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.SequenceCluster;
-import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.SequenceClusterList;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.UnalignedEnds;
 import com.clcbio.api.free.datatypes.bioinformatics.trim.TrimAdapterList;
 import com.clcbio.api.free.datatypes.framework.history.HistoryEntry;
 import com.clcbio.api.free.datatypes.report.Report;
-import com.clcbio.api.genomics.base.algo.assembly.AssemblyAlgoFacade;
 import com.clcbio.api.genomics.base.algo.trim.TrimAlgoFacade;
 import com.clcbio.api.genomics.base.algo.trim.Trimmer;
 
 import io.github.pdekker.viraltyping.algo.consensus.ConsensusBuilder.CoverageInformation;
+import io.github.pdekker.viraltyping.algo.consensus.ContigAligner.Patch;
+import io.github.pdekker.viraltyping.algo.consensus.ConsensusIterator.Extension;
 import io.github.pdekker.viraltyping.algo.consensus.ConsensusInterpreter.ConflictResolution;
 import io.github.pdekker.viraltyping.algo.consensus.ConsensusInterpreter.PrimerMode;
+import io.github.pdekker.viraltyping.algo.consensus.ConsensusInterpreter.SnapshotMode;
 
-@NonExclusive(minThreads = 1, maxThreads = 1)
+@NonExclusive(minThreads = 1, maxThreads = ConsensusAlgo.MAX_THREADS)
 public class ConsensusAlgo extends Algo {
 
 	public static final String ID = "sars_cov2_consensus_creator";
-	private static final double VERSION = 1.6;
+	private static final double VERSION = 1.7;
+	// threads reserved with the scheduler for a run, the pool of the run has exactly this many
+	static final int MAX_THREADS = 8;
+	private static final String SNAPSHOT_EXTENSION = ".pileup";
 	public static final String NAME = "Extract Consensus";
 	public static long algoVersionUID = 2202964220434324834L;
-	private static byte N = AlphabetTools.getDnaAlphabet().getMostAmbiguousSymbolIndex();
 
-	public static final ChannelDescription<ReadMappingObject> INPUT_CHANNEL = new ChannelDescription<ReadMappingObject>(
-			"Read Mapping", "Read Mapping", ReadMappingObject.class, "read-mapping");
+	public static final ChannelDescription<ReadMappingObject> INPUT_CHANNEL = ChannelDescription.create("Read Mapping",
+			ReadMappingObject.class, "read-mapping", Multiplicity.AT_LEAST_ONE);
 	public static final ChannelDescription<NucleotideSequence> CONSENSUS_OUTPUT = ChannelDescription
 			.create("Consensus", NucleotideSequence.class, "consensus");
 	public static final ChannelDescription<SymbolTrack> CONSENSUS_OUTPUT_TRACK = ChannelDescription.create("Consensus",
 			SymbolTrack.class, "consensus-track");
+	public static final ChannelDescription<VariantTrack> CONSENSUS_VARIANT_TRACK = ChannelDescription
+			.create("Variant Track", VariantTrack.class, "variant-track");
+	public static final ChannelDescription<NucleotideSequence> CONSENSUS_SWEEP = ChannelDescription
+			.create("Sweep consensus", NucleotideSequence.class, "sweep-consensus");
 	public static final ChannelDescription<Report> CONSENSUS_REPORT = ChannelDescription.create("Report", Report.class,
 			"report");
 
@@ -94,6 +102,8 @@ public class ConsensusAlgo extends Algo {
 		addInputChannel(INPUT_CHANNEL.createDefaultInputChannel());
 		addOutputChannel(CONSENSUS_OUTPUT.createDefaultOutputChannel());
 		addOutputChannel(CONSENSUS_REPORT.createDefaultOutputChannel());
+		addOutputChannel(CONSENSUS_SWEEP.createDefaultOutputChannel());
+		addOutputChannel(CONSENSUS_VARIANT_TRACK.createDefaultOutputChannel());
 	}
 
 	@Override
@@ -102,26 +112,163 @@ public class ConsensusAlgo extends Algo {
 		super.alignParametersToChannelUse(usedChannels, alignmentProblems);
 		final ConsensusInterpreter p = getInterpreter(getParameters());
 		p.createReport.put(usedChannels.contains(CONSENSUS_REPORT));
+		// the sweep is only run when it is asked for and its output is used
+		p.sweep.put(p.sweep.get() && usedChannels.contains(CONSENSUS_SWEEP));
 	}
 
 	@Override
 	public void checkParametersAndInput(Target<String> problems) {
 		super.checkParametersAndInput(problems);
+		if (getInputObjectsCount() < 1) {
+			problems.put("Select at least one read mapping");
+		}
 	}
 
+	/**
+	 * All selected read mappings are processed in one run. The trimmer and the parameters are set up once and shared,
+	 * the samples are processed concurrently on a bounded pool and the consensus and report of a sample are posted as
+	 * soon as the sample is done.
+	 */
 	@Override
 	public void calculate(final OutputHandler handler, final CallableExecutor objectModificationExecutor)
 			throws AlgoException, InterruptedException {
 
 		final ConsensusInterpreter p = new ConsensusInterpreter(getParameters());
 
-		final TemporaryObjectManager tom = new TemporaryObjectManager();
-
 		final Trimmer trimmer = createTrimmer(p.trimPrimers.get(),
 				(TrimAdapterList) p.trimLinkerList.getClcObject(getApplicationContext()));
+		final PrimerScheme primers = p.primerScheme.get().trim().isEmpty() ? null : readPrimerScheme(p);
 
+		final List<ReadMappingObject> mappings = CreateList.of();
+		final Iterator<? extends ClcObject> inputs = getInputObjectsIterator();
+		while (inputs.hasNext()) {
+			mappings.add((ReadMappingObject) inputs.next());
+		}
+
+		final ForkJoinPool executor = new ForkJoinPool(MAX_THREADS);
+		try {
+			final List<Future<?>> futures = CreateList.of();
+			for (final ReadMappingObject mappingObject : mappings) {
+				final Activity child = getActivity().getChildActivity(1.0 / mappings.size());
+				futures.add(executor.submit(() -> {
+					processMapping(mappingObject.asSequenceMapping(), p, trimmer, primers, child, handler);
+					return null;
+				}));
+			}
+			for (final Future<?> future : futures) {
+				getResult(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void processMapping(final ReadMapping mapping, final ConsensusInterpreter p, final Trimmer trimmer,
+			final PrimerScheme primers, final Activity activity, final OutputHandler handler)
+			throws AlgoException, InterruptedException {
 		final List<String> problematicSegments = CreateList.of();
+		final ConsensusReportBuilder reportBuilder = p.createReport.get() ? new ConsensusReportBuilder() : null;
+
+		final List<ClcObject> output = CreateList.of();
+		final List<NucleotideSequence> sweepOutput = CreateList.of();
+		final List<VariantTrack> variantTracks = CreateList.of();
+
+		// every reference sequence is processed by its own builder and iterator, the
+		// samples, the segments and the chunks within a segment share the pool
+		final List<ForkJoinTask<SegmentResult>> tasks = CreateList.of();
+		for (int index = 0; index < mapping.size(); index++) {
+			final int segment = index;
+			final Activity child = startActivity(activity, "Processing " + mapping.getMainSequence(index).getName(),
+					1.0 / mapping.size(), handler);
+			final Callable<SegmentResult> task = () -> processSegment(mapping, segment, p, trimmer, primers, child,
+					handler);
+			tasks.add(ForkJoinTask.adapt(task).fork());
+		}
+
+		// results are collected in reference order
+		final String mappingName = mapping.getObject().getName();
+		for (final ForkJoinTask<SegmentResult> task : tasks) {
+			final SegmentResult segment = getResult(task);
+			final NucleotideSequence result = (NucleotideSequence) segment.cons;
+
+			final String name = mapping.size() == 1 ? mappingName : mappingName + " " + segment.name;
+			final HistoryEntry he1 = AlgoHistoryTools.createEnrichedEntry(result, this);
+			result.startNoUndoBlock();
+			result.addHistory(he1);
+			result.setName(AlgoOutputNamingTools.createRetaggedName(name, "consensus"));
+			result.endNoUndoBlock();
+			output.add(result);
+
+			final VariantTrack variantTrack = createVariantTrack(result, segment.conflicts);
+			if (variantTrack != null) {
+				variantTracks.add(variantTrack);
+			}
+
+			if (reportBuilder != null) {
+				reportBuilder.addCoverageInformation(result, segment.coverInfo);
+				reportBuilder.addAmpliconInformation(result, segment.coverInfo);
+				reportBuilder.addFragmentInformation(result, segment.extension, segment.trimmedBases, segment.nRuns);
+			}
+			if (!segment.nRuns.isEmpty()) {
+				problematicSegments.add(result.getName());
+			}
+
+			for (final SweepResult sweep : segment.sweep) {
+				final NucleotideSequence sweepResult = (NucleotideSequence) sweep.cons;
+				final HistoryEntry he = AlgoHistoryTools.createEnrichedEntry(sweepResult, this);
+				sweepResult.startNoUndoBlock();
+				sweepResult.addHistory(he);
+				sweepResult.setName(AlgoOutputNamingTools.createRetaggedName(name, "consensus " + sweep.getLabel()));
+				sweepResult.endNoUndoBlock();
+				sweepOutput.add(sweepResult);
+				if (reportBuilder != null) {
+					reportBuilder.addSweepInformation(sweepResult, sweep.minCoverage, sweep.minFrequency,
+							sweep.conflictResolution, sweep.coverInfo);
+				}
+			}
+		}
+		output.addAll(sweepOutput);
+		output.addAll(variantTracks);
+
+		Report report = null;
+		if (reportBuilder != null) {
+			report = reportBuilder.createReport(NullActivity.INSTANCE);
+			final HistoryEntry he2 = AlgoHistoryTools.createEnrichedEntry(report, this);
+			report.startNoUndoBlock();
+			report.addHistory(he2);
+			report.setName(AlgoOutputNamingTools.createRetaggedName(mappingName, "report"));
+			report.endNoUndoBlock();
+			output.add(report);
+		}
+
+		// samples finish on different threads, posting is done one sample at a time
+		synchronized (this) {
+			for (final ClcObject obj : output) {
+				if (obj instanceof NucleotideSequence && !sweepOutput.contains(obj)) {
+					postToChannel(CONSENSUS_OUTPUT, (NucleotideSequence) obj);
+				}
+			}
+			for (final NucleotideSequence obj : sweepOutput) {
+				postToChannel(CONSENSUS_SWEEP, obj);
+			}
+			for (final VariantTrack track : variantTracks) {
+				postToChannel(CONSENSUS_VARIANT_TRACK, track);
+			}
+			if (report != null) {
+				postToChannel(CONSENSUS_REPORT, report);
+			}
+			if (!problematicSegments.isEmpty()) {
+				final String msg = problematicSegments.stream()
+						.collect(Collectors.joining(", ", "Following segments have N in sequence: ", "."));
+				handler.postMessage(msg, this);
+			}
+			handler.postOutputObjects(output, this);
+		}
+	}
 
+	private SegmentResult processSegment(ReadMapping mapping, int index, ConsensusInterpreter p, Trimmer trimmer,
+			PrimerScheme primers, Activity child, OutputHandler handler) throws AlgoException, InterruptedException {
+		final TemporaryObjectManager tom = new TemporaryObjectManager();
 		try {
 			final int minCoverage = p.minCoverage.get();
 			final int minCoverageExtend = p.minCoverageExtend.get();
@@ -134,188 +281,396 @@ public class ConsensusAlgo extends Algo {
 																											// we don't
 																											// use this
 																											// option.
-			final ConsensusReportBuilder reportBuilder = p.createReport.get() ? new ConsensusReportBuilder() : null;
-
 			final ConflictResolution conflictResolution = p.conflictResolution.get();
-
-			final SequenceListBuilder listBuilder = FactoryManager.getInstance().getSequenceListFactory()
-					.createBuilder();
-			tom.registerCleanupable(listBuilder);
-
-			final List<ClcObject> output = CreateList.of();
-
 			final boolean extend = p.extendStartEnd.get();
-			final ReadMapping mapping = ((ReadMappingObject) getInputObjectsIterator().next()).asSequenceMapping();
-//			for (int index = 0; index < mapping.size(); index++) {
-				final SymbolSource mainSequence = mapping.getMainSequence(0);
 
-				final MatchList matches = mapping.getMatchList(0);
-				final Activity child = startActivity(getActivity(), "Processing " + mainSequence.getName(),
-						1.0 / mapping.size(), handler);
-				final ConsensusBuilder builder = ConsensusBuilder.createBuilder(mainSequence, extend, minCoverage,
-						minCoverageExtend, minFrequency, addConflicts, conflictResolution, minProblematicVariantFreq);
-				tom.registerCleanupable(builder);
-				final ConsensusIterator it = new ConsensusIterator(builder, matches, mainSequence, p);
-
-				final DoubleInt extension = extend ? new DoubleInt(0, 0) : null;
+			final SnapshotMode snapshotMode = p.pileupSnapshot.get();
+			final SymbolSource mainSequence = mapping.getMainSequence(index);
+			final MatchList matches = mapping.getMatchList(index);
+			final PrimerScheme.Index amplicons = primers == null ? null : primers.getIndex(mainSequence.getName());
+			final PrimerScheme.Index primerIndex = p.trimPrimers.get() == PrimerMode.SCHEME ? amplicons : null;
+			// a snapshot and a sweep need the complete pileup, so they can't be combined with streaming
+			final ConsensusBuilder builder = ConsensusBuilder.createBuilder(mainSequence, extend, minCoverage,
+					minCoverageExtend, minFrequency, addConflicts, conflictResolution, minProblematicVariantFreq,
+					p.lowMemory.get() && snapshotMode == SnapshotMode.OFF && !p.sweep.get());
+			tom.registerCleanupable(builder);
+			builder.setAmplicons(amplicons);
+			builder.setAssemblyFlank(p.assemblyFlank.get());
+
+			DoubleInt extension = extend ? new DoubleInt(0, 0) : null;
+			final Path snapshotFile = snapshotMode == SnapshotMode.OFF ? null : getSnapshotFile(mapping, index, p);
+
+			if (snapshotMode == SnapshotMode.RECALL) {
+				child.setCurrentActivity("Reading pileup snapshot");
+				final PileupSnapshot snapshot = readSnapshot(snapshotFile, mainSequence);
+				builder.addStores(snapshot.getStores());
+				extension = snapshot.hasExtension()
+						? new DoubleInt(snapshot.getExtensionLeft(), snapshot.getExtensionRight())
+						: null;
+			} else {
+				final ConsensusIterator it = new ConsensusIterator(builder, matches, mainSequence, p,
+						primerIndex);
 
 				int mainStart = 0;
 				int mainEnd = mainSequence.getLength();
 
+				Extension end = null;
 				if (extend) {
-					mainStart = it.searchStart();
-					extension.n1 = it.fixStart(mainStart);
-					mainEnd = it.searchEnd();
+					final Extension start = it.extendStart();
+					end = it.extendEnd();
+					mainStart = start.mainPosition;
+					mainEnd = end.mainPosition;
+					extension.n1 = start.added;
+					extension.n2 = end.added;
+					start.addTo(builder);
 				}
 
-				it.iterate(mainStart, mainEnd, false, child);
+				ConsensusIterator.iterateInChunks(builder, matches, mainSequence, p, primerIndex, mainStart, mainEnd,
+						false, child);
 
-				if (extend) {
-					extension.n2 = it.fixEnd(mainEnd);
+				if (end != null) {
+					end.addTo(builder);
 				}
-				builder.finish();
-
-				Sequence cons = builder.getConsensus();
-				final Region toBeFixed = ConsensusBuilder.getBreakPointRegion(cons);
-
-				if (toBeFixed != null) {
-					handler.postStatus("Running local de novo to improve consensus", this);
-					child.setCurrentActivity("Running local de novo to improve consensus");
-					final boolean fixed = runLocalDeNovo(cons, toBeFixed, matches, tom, handler);
-					if (!fixed) {
-						handler.postStatus("Consensus was not updated", this);
-						child.setCurrentActivity("Consensus was not updated");
-					}
-
+				if (builder.getPrimerFallbacks() > 0) {
+					handler.postMessage(builder.getPrimerFallbacks() + " bases of reads in " + mainSequence.getName()
+							+ " that could not be followed were checked against the primer scheme one by one", this);
 				}
-
-				DoubleInt trimmedBases = null;
-				if (trimmer != null) {
-					final DoubleInt trimRegion = trimmer.getGoodRegionBounds(cons);
-					trimmedBases = new DoubleInt(Math.min(trimRegion.n1, trimRegion.n2),
-							cons.getLength() - Math.max(trimRegion.n1, trimRegion.n2));
-
-					if (trimRegion != null) {
-						final int start = Math.min(trimRegion.n1, trimRegion.n2);
-						final int end = Math.max(trimRegion.n1, trimRegion.n2);
-
-						if (start > 0 || end < cons.getLength()) {
-							tom.registerClcObject(cons);
-							final Sequence trimmed = cons.getSubsequence(new Region(start, end));
-							tom.disposeClcObject(cons);
-							cons = trimmed;
-						}
-					}
+				if (snapshotMode == SnapshotMode.WRITE) {
+					final String referenceName = mainSequence.getName();
+					final int referenceLength = mainSequence.getLength();
+					writeSnapshot(snapshotFile, extension == null
+							? PileupSnapshot.withoutExtension(referenceName, referenceLength, builder.getStores())
+							: new PileupSnapshot(referenceName, referenceLength, builder.getStores(), extension.n1,
+									extension.n2));
 				}
-				if (reportBuilder != null) {
-					final CoverageInformation coverInfo = builder.getCoverageInformation();
-					reportBuilder.addCoverageInformation( cons, coverInfo);
-					reportBuilder.addFragmentInformation( cons, extension, trimmedBases);
+			}
+			builder.finish();
+
+			Sequence cons = builder.getConsensus();
+			final NRunIndex nRuns = builder.getNRuns();
+			final ConflictIndex conflicts = builder.getConflicts();
+			final List<Region> toBeFixed = ConsensusBuilder.getBreakPointRegions(cons);
+
+			// the reads are not used when calling from a snapshot
+			if (!toBeFixed.isEmpty() && snapshotMode != SnapshotMode.RECALL) {
+				handler.postStatus("Running local de novo to improve consensus", this);
+				child.setCurrentActivity("Running local de novo to improve consensus");
+				final List<Region> rejected = Collections.synchronizedList(CreateList.of());
+				final boolean fixed = resolveBreakpoints(cons, nRuns, conflicts, toBeFixed, matches, rejected);
+				if (!fixed) {
+					handler.postStatus("Consensus was not updated", this);
+					child.setCurrentActivity("Consensus was not updated");
 				}
-				if (sequenceContainsN(cons)) {
-					problematicSegments.add(cons.getName());
+				if (!rejected.isEmpty()) {
+					final String msg = rejected.stream()
+							.map(r -> r.getFirstPos().getMin() + "-" + r.getLastPos().getMax())
+							.collect(Collectors.joining(", ", "Local assembly contigs of " + mainSequence.getName()
+									+ " at ", " did not align to the consensus well enough and were not used."));
+					handler.postMessage(msg, this);
 				}
-				tom.disposeCleanupable(builder);
-				endActivity(child);
-
-			final NucleotideSequence result = (NucleotideSequence) cons;
-			tom.deregisterCleanupable(listBuilder);
 
-			final HistoryEntry he1 = AlgoHistoryTools.createEnrichedEntry(result, this);
-			result.startNoUndoBlock();
-			result.addHistory(he1);
-			result.setName(AlgoOutputNamingTools.createRetaggedName(mapping.getObject().getName(), "consensus"));
-			result.endNoUndoBlock();
-			postToChannel(CONSENSUS_OUTPUT, result);
-			output.add(result);
-
-			if (reportBuilder != null) {
-				final HistoryEntry he2 = AlgoHistoryTools.createEnrichedEntry(result, this);
-				final Report report = reportBuilder.createReport(NullActivity.INSTANCE);
-				report.startNoUndoBlock();
-				report.addHistory(he2);
-				report.setName(AlgoOutputNamingTools.createRetaggedName(mapping.getObject().getName(), "report"));
-				report.endNoUndoBlock();
-				postToChannel(CONSENSUS_REPORT, report);
-				output.add(report);
 			}
 
-			if (!problematicSegments.isEmpty()) {
-				final String msg = problematicSegments.stream()
-						.collect(Collectors.joining(", ", "Following segments have N in sequence: ", "."));
-				handler.postMessage(msg, this);
+			DoubleInt trimmedBases = null;
+			if (trimmer != null) {
+				final DoubleInt trimRegion;
+				synchronized (trimmer) {
+					trimRegion = trimmer.getGoodRegionBounds(cons);
+				}
+				trimmedBases = new DoubleInt(Math.min(trimRegion.n1, trimRegion.n2),
+						cons.getLength() - Math.max(trimRegion.n1, trimRegion.n2));
+
+				if (trimRegion != null) {
+					final int start = Math.min(trimRegion.n1, trimRegion.n2);
+					final int end = Math.max(trimRegion.n1, trimRegion.n2);
+
+					if (start > 0 || end < cons.getLength()) {
+						tom.registerClcObject(cons);
+						final Sequence trimmed = cons.getSubsequence(new Region(start, end));
+						tom.disposeClcObject(cons);
+						cons = trimmed;
+						nRuns.trim(start, end);
+						conflicts.trim(start, end);
+					}
+				}
 			}
-
-			handler.postOutputObjects(output, this);
+			final CoverageInformation coverInfo = builder.getCoverageInformation();
+			final List<SweepResult> sweep = p.sweep.get() ? sweep(builder, p, child) : CreateList.of();
+			tom.disposeCleanupable(builder);
+			endActivity(child);
+			return new SegmentResult(mainSequence.getName(), cons, coverInfo, nRuns, conflicts, extension, trimmedBases,
+					sweep);
 		} finally {
 			tom.disposeAll();
 		}
 	}
 
-	private boolean sequenceContainsN(Sequence cons) {
-		final BulkByteIterator it = cons.getSymbolIterator();
-		while (it.hasNext()) {
-			if (it.next() == N) {
-				return true;
+	/**
+	 * Calls the pileup of the finished builder for every combination of the sweep parameters. The combinations only
+	 * read the shared pileup, so they are called in parallel on the pool of the segment.
+	 */
+	private static List<SweepResult> sweep(ConsensusBuilder builder, ConsensusInterpreter p, Activity activity)
+			throws AlgoException, InterruptedException {
+		activity.setCurrentActivity("Parameter sweep");
+		final List<ForkJoinTask<SweepResult>> tasks = CreateList.of();
+		for (final int minCoverage : p.getSweepMinCoverages()) {
+			for (final double minFrequency : p.getSweepMinFrequencies()) {
+				for (final ConflictResolution conflictResolution : ConflictResolution.values()) {
+					final Callable<SweepResult> task = () -> {
+						final ConsensusBuilder sweepBuilder = builder.withCallingParameters(minCoverage,
+								minFrequency, conflictResolution);
+						return new SweepResult(minCoverage, minFrequency, conflictResolution,
+								sweepBuilder.getConsensus(), sweepBuilder.getCoverageInformation());
+					};
+					tasks.add(ForkJoinTask.adapt(task).fork());
+				}
 			}
 		}
-		return false;
+		final List<SweepResult> results = CreateList.of();
+		for (final ForkJoinTask<SweepResult> task : tasks) {
+			results.add(getResult(task));
+		}
+		return results;
 	}
 
-	private boolean runLocalDeNovo(Sequence cons, Region toBeFixed, MatchList matches, TemporaryObjectManager tom,
-			OutputHandler handler) throws AlgoException, InterruptedException {
-		// extract reads;
-		final List<SequenceList> reads = extractReads(matches, toBeFixed, tom);
-		tom.registerClcObjects(reads);
+	/**
+	 * @return a variant track on the consensus with the conflicts of the consensus, null when there are none
+	 */
+	private static VariantTrack createVariantTrack(NucleotideSequence cons, ConflictIndex conflicts)
+			throws InterruptedException {
+		if (conflicts.isEmpty()) {
+			return null;
+		}
+		final Genome genome = Genome.fromSequences(Collections.singleton(cons));
+		final TrackFactory factory = FactoryManager.getInstance().getTrackFactory();
+		final String name = AlgoOutputNamingTools.createRetaggedName(cons.getName(), "Variant");
+		final VariantTrackBuilder builder = factory.createVariantTrackBuilder(name, genome);
+		final Chromosome chr = genome.chromosome(0);
+		builder.add(factory.createVariantTracklet(chr, ConsensusBuilder.asVariants(conflicts).iterator(),
+				NullActivity.INSTANCE));
+		return builder.finish();
+	}
 
-		if (reads.isEmpty()) {
-			return false;
+	/**
+	 * One snapshot file per reference sequence, named after the read mapping and the reference. Names of different
+	 * mappings can be the same, so a hash of the id of the mapping object and the reference is added to keep the
+	 * files of the samples of a batch apart.
+	 */
+	private static Path getSnapshotFile(ReadMapping mapping, int index, ConsensusInterpreter p) {
+		final String reference = mapping.getMainSequence(index).getName();
+		final String key = mapping.getObject().getId() + "\t" + index + "\t" + reference;
+		final String hash = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString().substring(0, 8);
+		final String name = (mapping.getObject().getName() + "_" + reference).replaceAll("[^A-Za-z0-9._-]", "_");
+		return Paths.get(p.pileupSnapshotFolder.get().trim(), name + "_" + hash + SNAPSHOT_EXTENSION);
+	}
+
+	private static void writeSnapshot(Path file, PileupSnapshot snapshot) throws AlgoException {
+		try {
+			Files.createDirectories(file.getParent());
+			snapshot.write(file);
+		} catch (final IOException e) {
+			throw new AlgoException(e);
 		}
-		final ClcObject contigs = runDeNovo(reads, tom);
-		tom.disposeClcObjects(reads);
-		if (contigs == null) {
-			return false;
+	}
+
+	private static PrimerScheme readPrimerScheme(ConsensusInterpreter p) throws AlgoException {
+		final Path file = Paths.get(p.primerScheme.get().trim());
+		if (!Files.isRegularFile(file)) {
+			throw new AlgoException("No primer scheme found: " + file);
+		}
+		try {
+			return PrimerScheme.read(file);
+		} catch (final IOException e) {
+			throw new AlgoException(e);
 		}
-		//handler.postOutputObjects(contigs, this); // enable for debugging puproses
-		final BlastOutput output = runBlast(cons, contigs, tom);
-		return updateConsensus(cons, output);
 	}
 
-	private boolean updateConsensus(Sequence cons, BlastOutput output) {
-		if (output == null) {
-			return false;
+	private static PileupSnapshot readSnapshot(Path file, SymbolSource mainSequence) throws AlgoException {
+		if (!Files.isRegularFile(file)) {
+			throw new AlgoException("No pileup snapshot found: " + file);
 		}
-		final BlastHit[] hits = output.getIteration(0).getHits();
-		if (hits == null || hits.length == 0) {
-			return false;
+		final PileupSnapshot snapshot;
+		try {
+			snapshot = PileupSnapshot.read(file);
+		} catch (final IOException e) {
+			throw new AlgoException(e);
+		}
+		if (!snapshot.getReferenceName().equals(mainSequence.getName())
+				|| snapshot.getReferenceLength() != mainSequence.getLength()) {
+			throw new AlgoException("Pileup snapshot " + file + " was made for " + snapshot.getReferenceName() + " ("
+					+ snapshot.getReferenceLength() + " bp), not for " + mainSequence.getName() + " ("
+					+ mainSequence.getLength() + " bp)");
+		}
+		return snapshot;
+	}
+
+	private static <T> T getResult(Future<T> future) throws AlgoException, InterruptedException {
+		try {
+			return future.get();
+		} catch (final ExecutionException e) {
+			// tasks adapted by the fork join pool wrap checked exceptions in a runtime exception
+			Throwable cause = e.getCause();
+			while (cause instanceof RuntimeException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof AlgoException) {
+				throw (AlgoException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new AlgoException(e);
+		}
+	}
+
+	private static class SegmentResult {
+		private final String name;
+		private final Sequence cons;
+		private final CoverageInformation coverInfo;
+		private final NRunIndex nRuns;
+		private final ConflictIndex conflicts;
+		private final DoubleInt extension;
+		private final DoubleInt trimmedBases;
+		private final List<SweepResult> sweep;
+
+		SegmentResult(String name, Sequence cons, CoverageInformation coverInfo, NRunIndex nRuns,
+				ConflictIndex conflicts, DoubleInt extension, DoubleInt trimmedBases, List<SweepResult> sweep) {
+			this.name = name;
+			this.cons = cons;
+			this.coverInfo = coverInfo;
+			this.nRuns = nRuns;
+			this.conflicts = conflicts;
+			this.extension = extension;
+			this.trimmedBases = trimmedBases;
+			this.sweep = sweep;
+		}
+	}
+
+	/**
+	 * Untrimmed consensus of one combination of the parameter sweep.
+	 */
+	private static class SweepResult {
+		private final int minCoverage;
+		private final double minFrequency;
+		private final ConflictResolution conflictResolution;
+		private final Sequence cons;
+		private final CoverageInformation coverInfo;
+
+		SweepResult(int minCoverage, double minFrequency, ConflictResolution conflictResolution, Sequence cons,
+				CoverageInformation coverInfo) {
+			this.minCoverage = minCoverage;
+			this.minFrequency = minFrequency;
+			this.conflictResolution = conflictResolution;
+			this.cons = cons;
+			this.coverInfo = coverInfo;
+		}
+
+		String getLabel() {
+			return "cov" + minCoverage + " freq" + minFrequency + " " + conflictResolution.getShortName();
+		}
+	}
+
+	/**
+	 * Every breakpoint region is assembled and aligned on its own, in parallel. The patches are applied from right to
+	 * left, so the coordinates of the patches that still have to be applied stay valid.
+	 */
+	private static boolean resolveBreakpoints(Sequence cons, NRunIndex nRuns, ConflictIndex conflicts,
+			List<Region> regions, MatchList matches, List<Region> rejected) throws AlgoException, InterruptedException {
+		final byte[] consensus = getSymbols(cons);
+		final List<ForkJoinTask<Patch>> tasks = CreateList.of();
+		for (final Region region : regions) {
+			final Callable<Patch> task = () -> runLocalDeNovo(consensus, region, matches, rejected);
+			tasks.add(ForkJoinTask.adapt(task).fork());
+		}
+		final List<Patch> patches = CreateList.of();
+		for (final ForkJoinTask<Patch> task : tasks) {
+			final Patch patch = getResult(task);
+			if (patch != null) {
+				patches.add(patch);
+			}
 		}
-		final BlastHsp best = hits[0].getHsp(0);
-		if (best.getIdentity() == best.getAlignLen()) {
-			// we have no mismatches so we can't update consensus...
+		if (patches.isEmpty()) {
+			// no contig could be placed or they are the same as the consensus
 			return false;
 		}
-		final int start = Math.max(0, best.getQueryFrom() - 1); // blast is 1 based
-		final int end = best.getQueryTo();
-		final String hseq = best.getHseq().replaceAll("-", "");
-		final byte[] seqSymbols = AlphabetTools.convertToBytes(hseq, AlphabetTools.getDnaAlphabet());
+		patches.sort((p1, p2) -> Integer.compare(p2.start, p1.start));
+		final List<Patch> applied = CreateList.of();
+		int limit = consensus.length;
 		cons.startNoUndoBlock();
-		cons.replaceSymbols(seqSymbols, start, end);
-		cons.addFeature(
-				new Feature("Local assembly", new Region(start, start + seqSymbols.length), ConsensusBuilder.FAILURES));
+		for (final Patch patch : patches) {
+			if (patch.end > limit) {
+				continue; // overlaps a patch that is already applied
+			}
+			cons.replaceSymbols(patch.bases, patch.start, patch.end);
+			nRuns.replace(patch.start, patch.end, patch.bases.length);
+			conflicts.replace(patch.start, patch.end, patch.bases.length);
+			applied.add(patch);
+			limit = patch.start;
+		}
+		// the features are added in the final coordinates, left to right
+		int shift = 0;
+		for (int i = applied.size() - 1; i >= 0; i--) {
+			final Patch patch = applied.get(i);
+			final int start = patch.start + shift;
+			cons.addFeature(new Feature("Local assembly", new Region(start, start + patch.bases.length),
+					ConsensusBuilder.FAILURES));
+			shift += patch.bases.length - (patch.end - patch.start);
+		}
 		cons.endNoUndoBlock();
 		return true;
 	}
 
-	private List<SequenceList> extractReads(MatchList matches, Region toBeFixed, TemporaryObjectManager tom) {
-		final SequenceListBuilderByReadGroup builder = FactoryManager.getInstance().getSequenceListFactory()
-				.createBuilderByReadGroup("reads");
-		tom.registerCleanupable(builder);
+	/**
+	 * Assembles the reads overlapping the region in memory and aligns the contigs to the consensus. The region is
+	 * added to rejected when no contig is used because the alignments didn't pass the thresholds of the aligner.
+	 *
+	 * @return the patch of the contig that fits best, null when there is none
+	 */
+	private static Patch runLocalDeNovo(byte[] consensus, Region toBeFixed, MatchList matches,
+			List<Region> rejected) {
+		final LocalAssembler assembler = new LocalAssembler();
+		if (addReads(assembler, matches, toBeFixed) == 0) {
+			return null;
+		}
+		final List<byte[]> contigs = assembler.assemble();
+		final ContigAligner aligner = new ContigAligner();
+		Patch best = null;
+		for (final byte[] contig : contigs) {
+			for (final byte[] strand : new byte[][] { contig, LocalAssembler.reverseComplement(contig) }) {
+				final Patch patch = aligner.align(consensus, strand);
+				if (patch != null && (best == null || patch.score > best.score)) {
+					best = patch;
+				}
+			}
+		}
+		if (best == null && aligner.getRejectedCount() > 0) {
+			rejected.add(toBeFixed);
+		}
+		return best;
+	}
 
+	private static byte[] getSymbols(BasicSequence seq) {
+		final byte[] symbols = new byte[seq.getLength()];
+		final BulkByteIterator it = seq.getSymbolIterator();
+		int i = 0;
+		while (it.hasNext()) {
+			symbols[i++] = it.next();
+		}
+		return symbols;
+	}
+
+	/**
+	 * Adds the reads overlapping the region straight from the match list to the assembler.
+	 *
+	 * @return the number of reads added
+	 */
+	private static int addReads(LocalAssembler assembler, MatchList matches, Region toBeFixed) {
 		final MatchListSession session = MatchListSession.forMatchList(matches);
 		final MatchIntersection intersection = MatchListIntersections.mainRange(session,
 				toBeFixed.getFirstPos().getMin(), toBeFixed.getLastPos().getMax());
-		final List<ReadGroup> groups = matches.getReadGroups();
 		final SequenceFactory seqFac = FactoryManager.getInstance().getSequenceFactory();
+		byte[] buffer = new byte[1_000];
+		int count = 0;
 
 		while (intersection.findMatch(UnalignedEnds.EXCLUDE)) {
 			final ScatteredLocalAlignment sla = intersection.currentMatch();
@@ -323,117 +678,37 @@ public class ConsensusAlgo extends Algo {
 			if (r == null) {
 				continue;
 			}
-			final ReadGroup rg = sla.getReadGroupIndex() == 0 ? null : groups.get(sla.getReadGroupIndex() - 1);
-
 			if (sla instanceof PairedEndLocalAlignment) {
 				final PairedEndLocalAlignment pla = (PairedEndLocalAlignment) sla;
-				final BasicSequence left = seqFac.createBasicSequence(pla.getOriginalLeftSequence());
-				final BasicSequence right = seqFac.createBasicSequence(pla.getOriginalRightSequence());
-				builder.addPair(rg, left, right);
+				buffer = addRead(assembler, seqFac.createBasicSequence(pla.getOriginalLeftSequence()), buffer);
+				buffer = addRead(assembler, seqFac.createBasicSequence(pla.getOriginalRightSequence()), buffer);
 			} else {
-				final BasicSequence read = seqFac.createBasicSequence(sla.getBasicSequence());
-				builder.addSingle(rg, read);
+				buffer = addRead(assembler, sla.getBasicSequence(), buffer);
 			}
+			count++;
 		}
-		final List<SequenceList> reads = builder.finish();
-		tom.deregisterCleanupable(builder);
-		return reads;
+		return count;
 	}
 
-	private ClcObject runDeNovo(List<SequenceList> reads, TemporaryObjectManager tom) throws AlgoException {
-		final AlgoParameters parms = new AlgoParameters();
-		final DeNovoV2Parameters p1 = new DeNovoV2Parameters(parms);
-		final DeNovoWithMappingParameters p2 = new DeNovoWithMappingParameters(parms);
-		p1.setToDefault();
-		p2.setToDefault();
-
-		p1.performScaffolding.put(false);
-		p2.mapReads.put(MappingMode.MAP_BACK);
-		p2.updateContigs.put(true);
-		p2.createReport.put(false);
-
-		final Algo algo = AssemblyAlgoFacade.getInstance().createDeNovoAssemblyAlgo(getApplicationContext());
-		final SimpleAlgoExecuter executer = new SimpleAlgoExecuter();
-		try {
-			executer.executeAndThrowExceptions(algo, parms, reads, NullActivity.INSTANCE);
-		} catch (final Exception e) {
-			throw new AlgoException(e);
+	/**
+	 * @return the buffer used for the symbols, it is replaced by a larger one when the read doesn't fit
+	 */
+	private static byte[] addRead(LocalAssembler assembler, BasicSequence read, byte[] buffer) {
+		if (buffer.length < read.getLength()) {
+			buffer = new byte[read.getLength()];
 		}
-
-		ClcObject result = null;
-		for (final ClcObject obj : executer.getOutputObjects()) {
-			tom.registerClcObject(obj);
-			if (obj instanceof SequenceCluster || obj instanceof SequenceClusterList) {
-				result = obj;
-			} else {
-				tom.disposeClcObject(obj);
-			}
-		}
-		return result;
-	}
-
-	private BlastOutput runBlast(Sequence cons, ClcObject contigs, TemporaryObjectManager tom) throws AlgoException {
-		final List<Sequence> seqs = extractAndRenameContigs(contigs);
-		final AlgoParameters p = new AlgoParameters();
-
-		final Algo algo = BlastFactory.getInstance().getLocalBlastAlgo(getApplicationContext());
-		final LocalBlastProgramAlgoParameters parm1 = new LocalBlastProgramAlgoParameters(p, getApplicationContext());
-		final LocalBlastnParameters parm2 = new LocalBlastnParameters(p);
-		parm2.setToDefault();
-		parm1.setToDefault();
-		parm1.setBlastProgram(BlastProgram.blastn);
-		parm1.setSubject(seqs);
-		parm2.setWord_size(13);
-		parm2.setEvalue(1.0);
-		parm2.setMaxNumHits(1);
-
-		final SimpleAlgoExecuter executer = new SimpleAlgoExecuter();
-		try {
-			cons.increaseUsage();
-			seqs.forEach(ClcObject::increaseUsage);
-			contigs.increaseUsage();
-			executer.executeAndThrowExceptions(algo, p, java.util.Collections.singletonList(cons), NullActivity.INSTANCE);
-			seqs.forEach(ClcObject::decreaseUsage);; // deletes contigs!
-
-		} catch (final Exception e) {
-			throw new AlgoException(e);
-		}
-
-		BlastOutput output = null;
-		for (final ClcObject obj : executer.getOutputObjects()) {
-			if (obj instanceof BlastOutput) {
-				output = (BlastOutput) obj;
-			} else {
-				tom.registerClcObject(obj);
-				tom.disposeClcObject(obj);
-			}
-		}
-		return output;
-	}
-
-	private List<Sequence> extractAndRenameContigs(ClcObject obj) {
-		final List<Sequence> results = new ArrayList<>();
-		if (obj instanceof SequenceClusterList) {
-			final SequenceClusterList sl = (SequenceClusterList) obj;
-			int i = 1;
-			for (final SequenceCluster c : sl.getClusters()) {
-				results.add(extractConsensusSequence(c, i++));
-			}
-		}
-		if (obj instanceof SequenceCluster) {
-			results.add(extractConsensusSequence((SequenceCluster) obj, 1));
+		final BulkByteIterator it = read.getSymbolIterator();
+		int length = 0;
+		while (it.hasNext()) {
+			buffer[length++] = it.next();
 		}
-		return results;
-	}
-
-	private Sequence extractConsensusSequence(SequenceCluster sc, int i) {
-		Sequence seq = FactoryManager.getInstance().getSequenceFactory().createSequence(sc.getMainSequence());
-		seq.setName("contig-" + i);
-		return seq;
+		assembler.addRead(buffer, 0, length);
+		return buffer;
 	}
 
 	private Trimmer createTrimmer(PrimerMode primerMode, TrimAdapterList list) {
-		if (primerMode == PrimerMode.IGNORE) {
+		// primers of a scheme are already masked in the pileup
+		if (primerMode != PrimerMode.REMOVE) {
 			return null;
 		}
 		final TrimInterpreter p = new TrimInterpreter(new AlgoParameters());
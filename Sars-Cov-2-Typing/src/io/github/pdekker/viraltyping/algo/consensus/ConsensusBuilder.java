@@ -1,23 +1,13 @@
 package io.github.pdekker.viraltyping.algo.consensus;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import com.clcbio.api.base.algorithm.AlgoOutputNamingTools;
-import com.clcbio.api.base.math.FrequencyDistribution;
 import com.clcbio.api.base.misc.Cleanupable;
-import com.clcbio.api.base.process.Activity;
 import com.clcbio.api.base.session.FactoryManager;
-import com.clcbio.api.base.util.Comprehension;
 import com.clcbio.api.base.util.CreateList;
-import com.clcbio.api.base.util.CreateMap;
-import com.clcbio.api.base.util.IteratorTools;
 import com.clcbio.api.base.util.StringTools;
 import com.clcbio.api.clc.datatypes.bioinformatics.variant.LinkageGroupImpl;
 import com.clcbio.api.clc.datatypes.bioinformatics.variant.SequenceAlterationFactory;
@@ -28,10 +18,7 @@ import com.clcbio.api.free.datatypes.bioinformatics.sequence.alphabet.Alphabet;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.alphabet.AlphabetTools;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.feature.Feature;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.feature.FeatureTypes;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.interval.Interval;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.interval.SimpleInterval;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.region.Region;
-import com.clcbio.api.free.datatypes.bioinformatics.sequence.region.RegionTools;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.symbol.SymbolSource;
 import com.clcbio.api.free.datatypes.bioinformatics.variant.MappingVariant;
 import com.clcbio.api.free.datatypes.bioinformatics.variant.SequenceAlteration;
@@ -44,7 +31,6 @@ import io.github.pdekker.viraltyping.algo.consensus.ConsensusInterpreter.Conflic
  * 
  */
 public class ConsensusBuilder implements Cleanupable {
-	private final static int BUFFER_SIZE = 10_000;
 	public final static String LOW_COVERAGE = "Low Coverage";
 	private final static String COVERAGE = "Coverage";
 	private final static String VAR = "var";
@@ -58,27 +44,50 @@ public class ConsensusBuilder implements Cleanupable {
 	private final boolean addConflicts;
 	private final double minFrequency;
 	private CoverageInformation coverageInformation;
-
-	private final int IGNORE_FAILURES_CLOSE_TO_END = 25;
+	private Sequence consensusSequence;
+	private NRunIndex nRuns;
+	private ConflictIndex conflictIndex;
+	private PrimerScheme.Index amplicons;
+	private int assemblyFlank = ConsensusCaller.DEFAULT_ASSEMBLY_FLANK;
+	// coverage of the builder whose pileup is called again with other calling parameters
+	private CoverageInformation sharedCoverage;
+	private final boolean streaming;
+	private Caller caller;
+	private long primerFallbacks = 0;
 
 	private final ConflictResolution conflictResolution;
 
-	private static final byte GAP = (byte) -1;
+	private static final byte GAP = CallingKernel.GAP;
 	private static final Alphabet DNA = AlphabetTools.getDnaAlphabet();
 	private static final byte N = DNA.getMostAmbiguousSymbolIndex();
+	private static final byte[] IUPAC = createIupacTable();
 
 	public static ConsensusBuilder createBuilder(SymbolSource main, boolean extend, int minCoverage,
 			int minCoverageExtend, double minFrequency, boolean addConflicts, ConflictResolution conflictResolution,
 			double minProblematicVariantFreq) {
+		return createBuilder(main, extend, minCoverage, minCoverageExtend, minFrequency, addConflicts,
+				conflictResolution, minProblematicVariantFreq, false);
+	}
+
+	/**
+	 * @param streaming when true positions are called while the iterator is running and the pileup is not kept, so
+	 *                  the memory use doesn't depend on the reference length. Sessions have to be added in position
+	 *                  order.
+	 */
+	public static ConsensusBuilder createBuilder(SymbolSource main, boolean extend, int minCoverage,
+			int minCoverageExtend, double minFrequency, boolean addConflicts, ConflictResolution conflictResolution,
+			double minProblematicVariantFreq, boolean streaming) {
 		return new ConsensusBuilder(main.getName(), minCoverage, minCoverageExtend, minFrequency, addConflicts,
-				conflictResolution, minProblematicVariantFreq);
+				conflictResolution, minProblematicVariantFreq, streaming);
 	}
 
 	List<BuilderSession> sessions;
 
 	private ConsensusBuilder(String name, int minCoverage, int minCoverageExtend, double minFrequency,
-			boolean addConflicts, ConflictResolution conflictResolution, double minProblematicVariantFreq) {
+			boolean addConflicts, ConflictResolution conflictResolution, double minProblematicVariantFreq,
+			boolean streaming) {
 		sessions = CreateList.of();
+		this.streaming = streaming;
 		this.name = name;
 		this.minCoverage = minCoverage;
 		this.minCoverageExtend = minCoverageExtend;
@@ -88,115 +97,219 @@ public class ConsensusBuilder implements Cleanupable {
 //		this.minProblematicVariantFreq = minProblematicVariantFreq;
 	}
 
+	/**
+	 * Creates a builder that calls the pileup of this builder with other calling parameters. The sessions are shared
+	 * and only read, so several of these builders can be called in parallel once this builder is finished. The depth
+	 * distribution and the amplicon depths don't depend on the calling parameters, they are taken from this builder
+	 * instead of being collected again.
+	 */
+	ConsensusBuilder withCallingParameters(int minCoverage, double minFrequency,
+			ConflictResolution conflictResolution) {
+		if (streaming) {
+			throw new IllegalStateException("The pileup is not kept in streaming mode");
+		}
+		final ConsensusBuilder builder = new ConsensusBuilder(name, minCoverage, minCoverageExtend, minFrequency,
+				addConflicts, conflictResolution, 2.0, false);
+		builder.sessions = sessions;
+		builder.assemblyFlank = assemblyFlank;
+		builder.sharedCoverage = getCoverageInformation();
+		return builder;
+	}
+
+	/**
+	 * Collects the depth of the amplicons of a primer scheme while calling, see
+	 * {@link CoverageInformation#getAmpliconDepth()}. Has to be set before the first session is added.
+	 */
+	void setAmplicons(PrimerScheme.Index amplicons) {
+		this.amplicons = amplicons;
+	}
+
+	/**
+	 * Sets the number of consensus positions added at both sides of a breakpoint cluster, the region that is
+	 * assembled again. Has to be set before the first session is added.
+	 */
+	void setAssemblyFlank(int assemblyFlank) {
+		this.assemblyFlank = assemblyFlank;
+	}
+
 	int getMinCoverageExtend() {
 		return minCoverageExtend;
 	}
 
-	public Iterator<DataPoint> iterator() {
-		if (sessions.size() == 0) {
-			return IteratorTools.getEmptyIterator();
-		}
-		if (sessions.size() == 1) {
-			return sessions.get(0).iterator();
-		}
-		final List<Iterator<DataPoint>> iterators = CreateList.of();
-		for (final BuilderSession session : sessions) {
-			iterators.add(session.iterator());
+	boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * @return the regions of the breakpoint clusters, ordered on their start position
+	 */
+	public static List<Region> getBreakPointRegions(BasicSequence bs) {
+		final List<Region> regions = CreateList.of();
+		for (final Feature f : bs.getFeatures()) {
+			if (f.getType().equals(FAILURES) && f.getName().equals(UNSURE)) {
+				regions.add(f.getRegion());
+			}
 		}
-		return Comprehension.flattenIteratorOfIterators(iterators.iterator());
+		regions.sort((r1, r2) -> Integer.compare(r1.getFirstPos().getMin(), r2.getFirstPos().getMin()));
+		return regions;
 	}
 
-	public int getNumberOfDataPoints() {
-		return sessions.stream().mapToInt(s -> s.size()).sum();
+	public Sequence getConsensus() {
+		if (consensusSequence == null) {
+			call();
+		}
+		return consensusSequence;
 	}
 
-	public Iterator<DataPoint> gapFilteredIterator() {
-		return IteratorTools.getFilteredIterator(iterator(), dp -> {
-			final List<PreVariant> prevariant = dp.getAlternativeSymbols(minFrequency, minCoverage);
-			return !DataPoint.willResultInGap(prevariant, conflictResolution);
-		});
+	/**
+	 * @return the runs of N's in the consensus, recorded while it was written
+	 */
+	NRunIndex getNRuns() {
+		if (nRuns == null) {
+			call();
+		}
+		return nRuns;
 	}
 
-	public static Region getBreakPointRegion(BasicSequence bs) {
-		final Optional<Feature> of = bs.getFeatures().stream()
-				.filter(f -> f.getType().equals(FAILURES) && f.getName().equals(UNSURE)).findFirst();
-		return of.isPresent() ? of.get().getRegion() : null;
+	/**
+	 * @return the alleles of the conflicts in the consensus, empty when conflicts are not annotated
+	 */
+	ConflictIndex getConflicts() {
+		if (conflictIndex == null) {
+			call();
+		}
+		return conflictIndex;
 	}
 
-	public Sequence getConsensus() {
-		final Iterator<DataPoint> it = iterator();
-		final SequenceBuilder seqBuilder = FactoryManager.getInstance().getSequenceFactory().createBuilder();
-		seqBuilder.setAlphabet(AlphabetTools.getDnaAlphabet());
-		seqBuilder.setName(AlgoOutputNamingTools.createRetaggedName(name, "cons"));
-		final byte[] tmpBuffer = new byte[BUFFER_SIZE];
-
-		int i = 0;
-		int pos = 0;
-		int lastPos = Integer.MIN_VALUE;
-		int count = 0;
-		final int maxCount = getNumberOfDataPoints() - IGNORE_FAILURES_CLOSE_TO_END;
-
-		final Map<Region, List<List<PreVariant>>> insertions = CreateMap.of();
-
-		final List<Interval> breakpoints = new ArrayList<>();
-
-		while (it.hasNext()) {
-			final DataPoint dp = it.next();
-			count++;
-			final List<PreVariant> prevariant = dp.getAlternativeSymbols(minFrequency, minCoverage);
-			if (DataPoint.willResultInGap(prevariant, conflictResolution)) {
-				if (prevariant.size() > 1) {
-					final Region variantRegion = new Region(pos, pos);
-					if (addConflicts) {
-						if (!insertions.containsKey(variantRegion)) {
-							insertions.put(variantRegion, CreateList.<List<PreVariant>>of());
-						}
-						insertions.get(variantRegion).add(prevariant);
-					}
-				}
-				continue;
-			}
-			if (dp.position >= lastPos) {
-				lastPos = dp.position;
-			} else {
-				throw new IllegalStateException("Data points not sorted!");
-			}
-			final byte consensus = DataPoint.getConsensusSymbol(prevariant, conflictResolution);
-			tmpBuffer[i] = consensus;
-			if (prevariant.size() > 1 && addConflicts) {
-				final Region variantRegion = new Region(pos, pos + 1);
-				addVariants(seqBuilder, variantRegion, prevariant, consensus);
-			}
-			if (count > IGNORE_FAILURES_CLOSE_TO_END && count < maxCount) {
-				if (dp.isBreakpointPosition()) {
-					breakpoints.add(new SimpleInterval(pos, pos + 1));
-				}
-			}
-			i++;
-			pos++;
-			if (i == BUFFER_SIZE) {
-				seqBuilder.addSequenceData(tmpBuffer, 0, BUFFER_SIZE);
-				i = 0;
+	/**
+	 * Single calling pass over all sessions. The consensus symbols, conflict features, low coverage regions,
+	 * breakpoints and coverage distribution are all derived from one call per position and kept, so later readers
+	 * don't have to recompute them. In streaming mode most positions were already called while the iterator was
+	 * running.
+	 */
+	private synchronized void call() {
+		if (caller == null) {
+			caller = new Caller();
+			for (final BuilderSession session : sessions) {
+				caller.accept(session.rows);
 			}
 		}
-		if (i > 0) {
-			seqBuilder.addSequenceData(tmpBuffer, 0, i);
+		caller.finish();
+		caller = null;
+	}
+
+	/**
+	 * Adapter that writes the results of the Workbench independent {@link ConsensusCaller} to a consensus sequence
+	 * with features.
+	 */
+	private final class Caller implements ConsensusCaller.Sink {
+		private final SequenceBuilder seqBuilder = FactoryManager.getInstance().getSequenceFactory().createBuilder();
+		private final ConsensusCaller calling = new ConsensusCaller(createKernel(), minCoverage, addConflicts,
+				amplicons, sharedCoverage == null, assemblyFlank, this);
+		private final List<Feature> lowCoverageRegions = CreateList.of();
+
+		private Caller() {
+			seqBuilder.setAlphabet(AlphabetTools.getDnaAlphabet());
+			seqBuilder.setName(AlgoOutputNamingTools.createRetaggedName(name, "cons"));
+		}
+
+		void accept(PileupRows rows) {
+			calling.accept(rows);
+		}
+
+		void accept(PileupRows store, int row) {
+			calling.accept(store, row);
 		}
 
-		// finish insertions...
-		for (final Entry<Region, List<List<PreVariant>>> e : insertions.entrySet()) {
-			addInsertionVariants(seqBuilder, e.getKey(), e.getValue());
+		@Override
+		public void addSymbols(byte[] symbols, int length) {
+			seqBuilder.addSequenceData(symbols, 0, length);
 		}
 
-		final List<Feature> lowCoverageRegions = getCoverageInformation().lowCoverageRegions;
-		for (final Feature f : lowCoverageRegions) {
+		@Override
+		public void addConflict(int position, CallingKernel kernel) {
+			addVariants(seqBuilder, new Region(position, position + 1), asPreVariants(kernel), kernel.getConsensus());
+		}
+
+		@Override
+		public void addInsertion(InsertionColumns columns, int from, int to, ConflictIndex records) {
+			addInsertionVariants(seqBuilder, records, columns, from, to);
+		}
+
+		@Override
+		public void addLowCoverage(int start, int end, long coverage) {
+			final Feature f = createLowCoverageFeature(start, end, (int) (coverage / (end - start)));
+			lowCoverageRegions.add(f);
 			seqBuilder.addFeature(f);
 		}
-		if (breakpoints.size() > 1) {
-			final Region r = RegionTools.getOrderedRegionWithoutOverlaps(new Region(breakpoints));
-			seqBuilder.addFeature(new Feature(UNSURE, r, FAILURES));
+
+		@Override
+		public void addBreakpointCluster(int start, int end) {
+			seqBuilder.addFeature(new Feature(UNSURE, new Region(start, end), FAILURES));
+		}
+
+		void finish() {
+			calling.finish();
+			coverageInformation = sharedCoverage == null
+					? new CoverageInformation(lowCoverageRegions, calling.getDepths(), calling.getConflictCount(),
+							calling.getNRuns(), calling.getAmpliconDepth())
+					: new CoverageInformation(lowCoverageRegions, sharedCoverage.depths, calling.getConflictCount(),
+							calling.getNRuns(), sharedCoverage.getAmpliconDepth());
+			nRuns = calling.getNRuns();
+			conflictIndex = calling.getConflicts();
+			consensusSequence = seqBuilder.finish();
+		}
+	}
+
+	private static Feature createLowCoverageFeature(int start, int end, int averageCoverage) {
+		final Feature f = new Feature(LOW_COVERAGE, new Region(start, end), FAILURES);
+		f.addAnnotation(COVERAGE, averageCoverage);
+		return f;
+	}
+
+	private CallingKernel createKernel() {
+		return new CallingKernel(minFrequency, minCoverage, asResolution(conflictResolution), IUPAC, N);
+	}
+
+	private static CallingKernel.Resolution asResolution(ConflictResolution conflictResolution) {
+		switch (conflictResolution) {
+		case VOTE_UNAMBIGUOUS:
+			return CallingKernel.Resolution.VOTE;
+		case MOST_AMBIGUOUS_IF_AMBIGUOUS:
+			return CallingKernel.Resolution.UNKNOWN;
+		case IUPAC_CONSENSUS:
+			return CallingKernel.Resolution.AMBIGUOUS;
+		default:
+			throw new AssertionError("Enum missing");
+		}
+	}
+
+	/**
+	 * Only called for conflicts, so objects are created only at the few positions that end up as a feature.
+	 */
+	private static List<PreVariant> asPreVariants(CallingKernel kernel) {
+		final List<PreVariant> variants = new ArrayList<>(kernel.getPassingCount());
+		for (int i = 0; i < CallingKernel.CALLED_SYMBOLS; i++) {
+			if (kernel.isPassing(i)) {
+				variants.add(new PreVariant(i, kernel.getCount(i), kernel.getCoverage()));
+			}
+		}
+		return variants;
+	}
+
+	private static byte[] createIupacTable() {
+		final byte[] table = new byte[16];
+		table[0] = N;
+		for (int mask = 1; mask < table.length; mask++) {
+			final List<Byte> symbols = CreateList.of();
+			for (int symbol = 0; symbol < 4; symbol++) {
+				if ((mask & 1 << symbol) != 0) {
+					symbols.add((byte) symbol);
+				}
+			}
+			table[mask] = DNA.getConsensus(symbols);
 		}
-		return seqBuilder.finish();
+		return table;
 	}
 
 	private void addVariants(SequenceBuilder seqBuilder, Region variantRegion, List<PreVariant> prevariant,
@@ -204,10 +317,27 @@ public class ConsensusBuilder implements Cleanupable {
 		seqBuilder.addFeature(asFeature(prevariant, variantRegion, consensus));
 	}
 
-	private void addInsertionVariants(SequenceBuilder seqBuilder, Region variantRegion,
-			List<List<PreVariant>> prevariant) {
-		if (prevariant.size() == 1) {
-			seqBuilder.addFeature(asFeature(prevariant.get(0), variantRegion, GAP));
+	/**
+	 * Adds the conflict feature of the insertion formed by the columns [from, to). The n-th insertion allele is made
+	 * of the n-th most frequent symbol of every column.
+	 */
+	private void addInsertionVariants(SequenceBuilder seqBuilder, ConflictIndex records, InsertionColumns columns,
+			int from, int to) {
+		final int position = columns.getPosition(from);
+		final Region variantRegion = new Region(position, position);
+		if (to - from == 1) {
+			final List<PreVariant> prevariant = new ArrayList<>(columns.getPassingCount(from));
+			for (int symbol = 0; symbol < CallingKernel.CALLED_SYMBOLS; symbol++) {
+				if (columns.isPassing(from, symbol)) {
+					final PreVariant pv = new PreVariant(symbol, columns.getCount(from, symbol),
+							columns.getCoverage(from));
+					prevariant.add(pv);
+					if (!pv.isGap()) {
+						records.addInsertion(position, new byte[] { pv.symbol }, 1, pv.count, pv.coverage);
+					}
+				}
+			}
+			seqBuilder.addFeature(asFeature(prevariant, variantRegion, GAP));
 			return;
 		}
 
@@ -215,38 +345,42 @@ public class ConsensusBuilder implements Cleanupable {
 		f.addAnnotation("Conflict resolution",
 				"" + conflictResolution.getShortName() + " called '" + getBaseName(GAP) + "'");
 		f.addAnnotation("Reference position", variantRegion.toUserString());
-		f.addAnnotation("Start position", variantRegion.getFirstPos().getMin() + 1);
+		f.addAnnotation("Start position", position + 1);
 		f.addAnnotation("Ref", getBaseName(GAP));
 
 		final StringBuilder variants = new StringBuilder();
 
 		int maxVariants = -1;
 		int coverage = 0;
-		for (final List<PreVariant> pv : prevariant) {
-			Collections.sort(pv, (o1, o2) -> Double.compare(o2.freq, o1.freq));
-			maxVariants = Math.max(maxVariants, pv.size());
-			coverage += pv.get(0).coverage;
+		for (int column = from; column < to; column++) {
+			maxVariants = Math.max(maxVariants, columns.getPassingCount(column));
+			coverage += columns.getCoverage(column);
 		}
 
-		coverage /= prevariant.size();
+		coverage /= to - from;
 
 		final StringBuilder sb = new StringBuilder();
+		final byte[] symbols = new byte[to - from];
 		for (int i = 0; i < maxVariants; i++) {
 			sb.setLength(0);
+			int length = 0;
 			int count = 0;
 			int gaps = 0;
 			int gapCount = 0;
 
-			for (final List<PreVariant> pvs : prevariant) {
-				if (i < pvs.size()) {
-					final PreVariant pv = pvs.get(i);
-					if (pv.isGap()) {
-						gaps++;
-						gapCount += pv.count;
-					} else {
-						sb.append(getBaseName(pv.symbol));
-						count += pv.count;
-					}
+			for (int column = from; column < to; column++) {
+				final int symbol = columns.getRankedSymbol(column, i);
+				if (symbol == -1) {
+					continue;
+				}
+				final byte alphabetSymbol = CallingKernel.getSymbol(symbol);
+				if (alphabetSymbol == GAP) {
+					gaps++;
+					gapCount += columns.getCount(column, symbol);
+				} else {
+					sb.append(getBaseName(alphabetSymbol));
+					symbols[length++] = alphabetSymbol;
+					count += columns.getCount(column, symbol);
 				}
 			}
 
@@ -267,12 +401,13 @@ public class ConsensusBuilder implements Cleanupable {
 				}
 				variants.append(insertion);
 
-				count /= insertion.length();
-				coverage /= insertion.length();
-				final double freq = (double) count / coverage;
+				final int alleleCount = count / insertion.length();
+				final int alleleCoverage = coverage / insertion.length();
+				final double freq = (double) alleleCount / alleleCoverage;
 
-				f.addAnnotation(insertion + " count", count);
+				f.addAnnotation(insertion + " count", alleleCount);
 				f.addAnnotation(insertion + " perc", freq * 100);
+				records.addInsertion(position, symbols, length, alleleCount, alleleCoverage);
 			}
 		}
 		f.addAnnotation(COVERAGE, coverage);
@@ -281,89 +416,136 @@ public class ConsensusBuilder implements Cleanupable {
 	}
 
 	public CoverageInformation getCoverageInformation() {
-		if (coverageInformation != null) {
-			return coverageInformation;
+		if (coverageInformation == null) {
+			call();
 		}
-		final Iterator<DataPoint> it = gapFilteredIterator();
-		final FrequencyDistribution fd = new FrequencyDistribution();
+		return coverageInformation;
+	}
 
-		int pos = 0;
+	public void finish() {
+	}
 
-		final List<Feature> lowCoverageRegions = CreateList.of();
-		int startLow = -1;
-		int coverage = 0;
+	@Override
+	public void cleanup() {
+	}
 
-		while (it.hasNext()) {
-			final DataPoint dp = it.next();
-			final int cov = dp.getCoverage();
-			final boolean lowCoverage = cov < minCoverage;
-			fd.add(cov);
-			if (lowCoverage) {
-				if (startLow == -1) {
-					startLow = pos;
-					coverage = 0;
-				}
-				coverage += cov;
-			} else {
-				if (startLow != -1) {
-					final Feature f = new Feature(LOW_COVERAGE, new Region(startLow, pos), FAILURES);
-					coverage /= pos - startLow;
-					f.addAnnotation("Coverage", coverage);
-					lowCoverageRegions.add(f);
-					startLow = -1;
-				}
-			}
-			pos++;
+	public BuilderSession createSession(int start, int end) {
+		return new BuilderSession(start, end, null);
+	}
+
+	/**
+	 * In streaming mode the rows of this session are called as soon as they are done and the pileup store only holds
+	 * the current row. Otherwise it is the same as {@link #createSession(int, int)}.
+	 */
+	BuilderSession createStreamingSession(int start, int end) {
+		return streaming ? new BuilderSession(start, end, getCaller()) : createSession(start, end);
+	}
+
+	/**
+	 * @return the pileup rows of all sessions in position order, used to write a {@link PileupSnapshot}
+	 */
+	synchronized List<PileupRows> getStores() {
+		final List<PileupRows> stores = CreateList.of();
+		for (final BuilderSession session : sessions) {
+			stores.add(session.rows);
 		}
-		if (startLow != -1) {
-			final Feature f = new Feature(LOW_COVERAGE, new Region(startLow, pos), FAILURES);
-			coverage /= pos - startLow;
-			f.addAnnotation("Coverage", coverage);
-			lowCoverageRegions.add(f);
+		return stores;
+	}
+
+	/**
+	 * Adds the pileup rows of a {@link PileupSnapshot} as sessions, so the consensus can be called without
+	 * iterating the reads again. The rows are not copied, they are read from the snapshot while calling.
+	 */
+	void addStores(List<PileupRows> stores) {
+		for (final PileupRows rows : stores) {
+			add(new BuilderSession(rows));
 		}
-		coverageInformation = new CoverageInformation(lowCoverageRegions, fd);
-		return coverageInformation;
 	}
 
-	public void finish() {
+	/**
+	 * Counts the read bases the primer filter of a chunk had to check without the state of their read.
+	 */
+	synchronized void addPrimerFallbacks(long count) {
+		primerFallbacks += count;
 	}
 
-	@Override
-	public void cleanup() {
+	synchronized long getPrimerFallbacks() {
+		return primerFallbacks;
 	}
 
-	public BuilderSession createSession(int start, int end, Activity activity) {
-		return new BuilderSession(start, end, activity);
+	private synchronized Caller getCaller() {
+		if (caller == null) {
+			caller = new Caller();
+		}
+		return caller;
 	}
 
-	public void add(BuilderSession session) {
-		sessions.add(session);
+	/**
+	 * Adds a session, sessions can be added from several threads and in any order. They are kept sorted on their
+	 * start position.
+	 */
+	public synchronized void add(BuilderSession session) {
+		if (streaming) {
+			// streamed sessions are already called, the others are called now
+			if (!session.streamed) {
+				getCaller().accept(session.rows);
+			}
+			sessions.add(session);
+			return;
+		}
+		int index = sessions.size();
+		while (index > 0 && sessions.get(index - 1).start > session.start) {
+			index--;
+		}
+		sessions.add(index, session);
 	}
 
 	final static class BuilderSession {
-		final List<DataPoint> rows;
-		int lastPositionFoundByDone = 0;
+		private final static int STREAMING_CAPACITY = 1;
+
+		// null for the sessions of a snapshot, which can't be counted into
+		final PileupStore store;
+		final PileupRows rows;
 		final int start;
 		final int end;
-		final Activity activity;
+		private final Caller caller;
+		final boolean streamed;
 
-		private BuilderSession(int start, int end, Activity activity) {
-			rows = new ArrayList<DataPoint>((int) ((end - start) * 1.2));
-			this.activity = activity;
+		private BuilderSession(int start, int end, Caller caller) {
+			store = new PileupStore(caller == null ? (int) ((end - start) * 1.2) : STREAMING_CAPACITY);
+			rows = store;
 			this.start = start;
 			this.end = end;
+			this.caller = caller;
+			this.streamed = caller != null;
+		}
+
+		private BuilderSession(PileupRows rows) {
+			this.store = null;
+			this.rows = rows;
+			this.start = rows.size() == 0 ? 0 : rows.getPosition(0);
+			this.end = rows.size() == 0 ? 0 : rows.getPosition(rows.size() - 1) + 1;
+			this.caller = null;
+			this.streamed = false;
+		}
+
+		/**
+		 * Called when all reads of the row are counted. In streaming mode the row is called directly and removed from
+		 * the store.
+		 */
+		void rowDone(int row) {
+			if (caller != null) {
+				caller.accept(store, row);
+				store.clear();
+			}
 		}
 
-		public Iterator<DataPoint> iterator() {
-			return rows.iterator();
-		}
-
-		public void add(int pos, int[] symbolForCounts, int[] symbolRevCounts, boolean left, boolean right) {
-			rows.add(new DataPoint(pos, symbolForCounts, symbolRevCounts, left, right));
-			if (pos > lastPositionFoundByDone) {
-				lastPositionFoundByDone = pos + 100; // we add 100 so we don't
-				activity.setProgress((double) (pos - start) / end - start);
-			}
+		/**
+		 * Adds an empty row for the position and returns its index, the counts are written directly into the
+		 * {@link PileupStore} of this session.
+		 */
+		int addRow(int pos) {
+			return store.addRow(pos);
 		}
 
 		public int size() {
@@ -378,11 +560,7 @@ public class ConsensusBuilder implements Cleanupable {
 		private final int coverage;
 
 		PreVariant(int symbol, int count, int coverage) {
-			if (symbol == 5) {
-				this.symbol = N;
-			} else {
-				this.symbol = (byte) (symbol - 1);
-			}
+			this.symbol = CallingKernel.getSymbol(symbol);
 			this.count = count;
 			this.coverage = coverage;
 			this.freq = (double) count / coverage;
@@ -393,127 +571,6 @@ public class ConsensusBuilder implements Cleanupable {
 		}
 	}
 
-	private static class DataPoint {
-
-		private final int position;
-		private final int[] symbolForCounts;
-		private final int[] symbolRevCounts;
-		private final boolean left;
-		private final boolean right;
-
-		public DataPoint(int position, int[] symbolForCounts, int[] symbolRevCounts, boolean left, boolean right) {
-			this.position = position;
-			this.symbolForCounts = symbolForCounts;
-			this.symbolRevCounts = symbolRevCounts;
-			this.left = left;
-			this.right = right;
-		}
-
-		public static byte getConsensusSymbol(List<PreVariant> prevariant, ConflictResolution conflictResolution) {
-			if (prevariant.size() == 0) {
-				return N; // too low coverage
-			}
-			if (prevariant.size() == 1) {
-				return prevariant.get(0).symbol;
-			}
-			switch (conflictResolution) {
-			case IUPAC_CONSENSUS:
-				final List<Byte> list = CreateList.of();
-				for (final PreVariant pv : prevariant) {
-					if (pv.symbol >= 0) { // ignore gaps
-						list.add(pv.symbol);
-					}
-				}
-				return DNA.getConsensus(list);
-			case MOST_AMBIGUOUS_IF_AMBIGUOUS:
-				return N;
-			case VOTE_UNAMBIGUOUS:
-				PreVariant best = null;
-				for (final PreVariant pv : prevariant) {
-					if (best == null) {
-						best = pv;
-					} else {
-						if (best.count < pv.count) {
-							best = pv;
-						}
-					}
-				}
-				return best.symbol;
-			default:
-				throw new AssertionError("Enum missing");
-			}
-		}
-
-		public static boolean willResultInGap(List<PreVariant> prevariant, ConflictResolution conflictResolution) {
-
-			if (prevariant.size() == 0) {
-				return false; // too low coverage
-			}
-			if (prevariant.size() == 1) {
-				return prevariant.get(0).isGap();
-			}
-			switch (conflictResolution) {
-			case IUPAC_CONSENSUS:
-			case MOST_AMBIGUOUS_IF_AMBIGUOUS:
-				return false;
-			case VOTE_UNAMBIGUOUS:
-				PreVariant best = null;
-				for (final PreVariant pv : prevariant) {
-					if (best == null) {
-						best = pv;
-					} else {
-						if (best.count < pv.count) {
-							best = pv;
-						}
-					}
-				}
-				return best.isGap();
-			default:
-				throw new AssertionError("Enum missing");
-			}
-		}
-
-		public List<PreVariant> getAlternativeSymbols(double freq, int minCoverage) {
-			if (isLowCoverage(minCoverage)) {
-				return Collections.emptyList();
-			}
-			int sum = 0;
-			// int max = 0;
-			for (int i = 0; i < 6; i++) {
-				final int c = symbolForCounts[i] + symbolRevCounts[i];
-				sum += c;
-				// max = Math.max(c, max);
-			}
-			final List<PreVariant> variants = CreateList.of();
-			final int minCount = (int) (sum * freq);
-			for (int i = 0; i < 5; i++) {
-				// note i == 5 is count for N but we don't want to report N.
-				final int c = symbolForCounts[i] + symbolRevCounts[i];
-				if (c > minCount) {
-					variants.add(new PreVariant(i, c, sum));
-				}
-			}
-			return variants;
-		}
-
-		private int getCoverage() {
-			int sum = 0;
-			for (int i = 0; i < 6; i++) {
-				sum += symbolForCounts[i] + symbolRevCounts[i];
-			}
-			return sum;
-		}
-
-		public boolean isLowCoverage(int minCoverage) {
-			return getCoverage() < minCoverage;
-		}
-
-		public boolean isBreakpointPosition() {
-			return left || right;
-		}
-
-	}
-
 	private Feature asFeature(List<PreVariant> pv, Region variantRegion, byte consensus) {
 		final Feature f = new Feature(FeatureTypes.CONFLICT, variantRegion, FeatureTypes.CONFLICT);
 		f.addAnnotation("Conflict resolution",
@@ -587,6 +644,24 @@ public class ConsensusBuilder implements Cleanupable {
 		return variants;
 	}
 
+	/**
+	 * Creates the variants directly from the conflict records, without formatting and parsing annotations.
+	 */
+	static List<Variant> asVariants(ConflictIndex conflicts) {
+		final List<Variant> variants = new ArrayList<>(conflicts.size());
+		for (int i = 0; i < conflicts.size(); i++) {
+			final byte[] refs = conflicts.isInsertion(i) ? null : new byte[] { conflicts.getRef(i) };
+			final SequenceAlteration sa = SequenceAlterationFactory
+					.createHeuristicSequenceAlteration(conflicts.getPosition(i), conflicts.getAllele(i), refs);
+			final MappingVariant mv = new MappingVariant(sa, LinkageGroupImpl.createLinkageGroupNone());
+			mv.setCoverage(conflicts.getCoverage(i));
+			mv.setCount(conflicts.getCount(i));
+			mv.setFrequency(conflicts.getFrequency(i));
+			variants.add(mv);
+		}
+		return variants;
+	}
+
 	public static boolean hasVariant(BasicSequence seq) {
 		return seq.getFeatureCount(FeatureTypes.CONFLICT) > 0;
 	}
@@ -599,11 +674,53 @@ public class ConsensusBuilder implements Cleanupable {
 		private final static int MAX_ENUM_REGIONS = 10;
 
 		final List<Feature> lowCoverageRegions;
-		final FrequencyDistribution fd;
-
-		public CoverageInformation(List<Feature> lowCoverage, FrequencyDistribution fd) {
+		final DepthHistogram depths;
+		final int conflicts;
+		private final NRunIndex nRuns;
+		private final AmpliconDepth ampliconDepth;
+
+		CoverageInformation(List<Feature> lowCoverage, DepthHistogram depths) {
+			this(lowCoverage, depths, 0, new NRunIndex(), null);
+		}
+
+		/**
+		 * @param conflicts number of called positions with more than one symbol passing the frequency threshold
+		 * @param nRuns     the runs of N's of the consensus, the index is kept up to date when the consensus is
+		 *                  patched or trimmed
+		 */
+		CoverageInformation(List<Feature> lowCoverage, DepthHistogram depths, int conflicts, NRunIndex nRuns,
+				AmpliconDepth ampliconDepth) {
 			this.lowCoverageRegions = lowCoverage;
-			this.fd = fd;
+			this.depths = depths;
+			this.conflicts = conflicts;
+			this.nRuns = nRuns;
+			this.ampliconDepth = ampliconDepth;
+		}
+
+		/**
+		 * @return number of N's in the consensus as it is now, after the breakpoints are resolved and the consensus
+		 *         is trimmed
+		 */
+		int getUnknown() {
+			return nRuns.getTotalLength();
+		}
+
+		/**
+		 * @return the depth per amplicon, null when no primer scheme was given
+		 */
+		AmpliconDepth getAmpliconDepth() {
+			return ampliconDepth;
+		}
+
+		/**
+		 * @return number of consensus positions in low coverage regions
+		 */
+		public int getLowCoverageBreadth() {
+			int breadth = 0;
+			for (final Feature f : lowCoverageRegions) {
+				breadth += f.getRegion().getSize();
+			}
+			return breadth;
 		}
 
 		public String lowCoverageRegions() {
@@ -1,5 +1,6 @@
 package io.github.pdekker.viraltyping.algo.consensus;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
@@ -20,6 +21,7 @@ import com.clcbio.api.base.algorithm.parameter.keys.Key;
 import com.clcbio.api.base.algorithm.parameter.keys.KeyChecker;
 import com.clcbio.api.base.algorithm.parameter.keys.KeyContainer;
 import com.clcbio.api.base.algorithm.parameter.keys.Keys;
+import com.clcbio.api.base.algorithm.parameter.keys.StringKey;
 import com.clcbio.api.base.process.Activity;
 import com.clcbio.api.base.session.ApplicationContext;
 import com.clcbio.api.base.util.CreateSet;
@@ -39,6 +41,10 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 
 	public final ParameterGroup qualityFilterGroup = ParameterGroup.childOf(secondPageGroup, "Quality filters");
 
+	public final ParameterGroup performanceGroup = ParameterGroup.childOf(secondPageGroup, "Performance");
+
+	public final ParameterGroup sweepGroup = ParameterGroup.childOf(secondPageGroup, "Parameter sweep");
+
 	public final ParameterGroup extensionSettingsGroup = ParameterGroup.childOf(firstPageGroup, "Extension");
 
 	public final ParameterGroup conflictResolutionGroup = ParameterGroup.childOf(firstPageGroup, "Conflict resolution");
@@ -81,14 +87,27 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 			.allowedTypesDescription("Trim Adapter List").allowedTypes(TrimAdapterList.class).withMultiplicity(0, 1)
 			.inGroup(extensionSettingsGroup).done();
 
+	public final StringKey primerScheme = Keys.newStringKey(this, "primerScheme").withOptionKey("primer-scheme")
+			.labelled("Primer scheme")
+			.describedAs(
+					"BED file with the primers of the amplicon scheme, used for the depth per amplicon in the report. When primers are masked from the scheme, the primer bases are masked in the reads before the consensus is called")
+			.inGroup(extensionSettingsGroup).defaultsTo("").optional().done();
+
 	public final BooleanKey inDelResolution = Keys.newBooleanKey(this, "indel_resolution").labelled("InDel resolution")
-			.describedAs("Perform local de Novo assembly to resolve larger InDels (experimental)")
-			.withOptionKey("indel-resolution").defaultsTo(false).inGroup(inDelResolutionGroup).done();
+			.describedAs("Perform local de Novo assembly to resolve larger InDels")
+			.withOptionKey("indel-resolution").defaultsTo(true).inGroup(inDelResolutionGroup).done();
 
 	public final DoubleKey minBreakpoint = Keys.newDoubleKey(this, "minBreakpoint").defaultsTo(0.25)
 			.minMax(0.0, false, 1.0, true).labelled("Breakpoint frequency").withOptionKey("min-frequency-breakpoint")
 			.inGroup(inDelResolutionGroup).done();
 
+	public final IntegerKey assemblyFlank = Keys.newIntegerKey(this, "assemblyFlank")
+			.defaultsTo(ConsensusCaller.DEFAULT_ASSEMBLY_FLANK).minMax(1, null)
+			.labelled("Assembly flank").withOptionKey("assembly-flank")
+			.describedAs("Positions added to both sides of a breakpoint cluster for the local assembly, "
+					+ "about one read length. Breakpoints closer than twice the flank are assembled together")
+			.inGroup(inDelResolutionGroup).done();
+
 	public static enum ConflictResolution implements Named, Described {
 		VOTE_UNAMBIGUOUS("Vote", "Vote (A, C, G, T)", "Insert the most common nucleotide when a conflict occurs"),
 		MOST_AMBIGUOUS_IF_AMBIGUOUS("Unknown", "Unknown nucleotide (N)",
@@ -121,8 +140,31 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 		}
 	}
 
+	public static enum SnapshotMode implements Named, Described {
+		OFF("Off", "Do not use pileup snapshots"), WRITE("Write", "Write a pileup snapshot for every reference sequence"),
+		RECALL("Re-call", "Call the consensus from the pileup snapshots, large InDel resolution is not available");
+
+		private final String name;
+		private final String desc;
+
+		SnapshotMode(String name, String desc) {
+			this.name = name;
+			this.desc = desc;
+		}
+
+		@Override
+		public String getDescription() {
+			return desc;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
 	public static enum PrimerMode implements Named, Described {
-		REMOVE("Remove primers"), IGNORE("Ignore primers");
+		REMOVE("Remove primers"), IGNORE("Ignore primers"), SCHEME("Mask primers from a primer scheme");
 
 		private String desc;
 
@@ -180,6 +222,39 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 			.describedAs("Minimum average quality score for the region around the central nucleotide")
 			.inGroup(qualityFilterGroup).done();
 
+	public final BooleanKey lowMemory = Keys.newBooleanKey(this, "lowMemory").defaultsTo(false)
+			.withOptionKey("low-memory").labelled("Low memory mode")
+			.describedAs(
+					"When ticked, the consensus is written while the reads are processed. Memory use no longer depends on the reference length, but every reference sequence is processed by a single thread.")
+			.inGroup(performanceGroup).done();
+
+	public final EnumKey<SnapshotMode> pileupSnapshot = Keys.newEnumKey(this, "pileupSnapshot", SnapshotMode.class)
+			.defaultsTo(SnapshotMode.OFF).withOptionKey("pileup-snapshot").labelled("Pileup snapshot")
+			.describedAs(
+					"Write the pileup of every reference sequence to a snapshot file, or call the consensus again from earlier written snapshots without reading the read mapping.")
+			.inGroup(performanceGroup).done();
+
+	public final StringKey pileupSnapshotFolder = Keys.newStringKey(this, "pileupSnapshotFolder")
+			.withOptionKey("pileup-snapshot-folder").labelled("Snapshot folder")
+			.describedAs("Folder on disk where the pileup snapshots are written to and read from")
+			.inGroup(performanceGroup).defaultsTo("").optional().done();
+
+	public final BooleanKey sweep = Keys.newBooleanKey(this, "sweep").defaultsTo(false).withOptionKey("sweep")
+			.labelled("Parameter sweep")
+			.describedAs(
+					"When ticked, the pileup is also called for every combination of the minimum coverages and frequencies below and every conflict resolution. A consensus is created per combination and summarized in the report.")
+			.inGroup(sweepGroup).done();
+
+	public final StringKey sweepMinCoverage = Keys.newStringKey(this, "sweepMinCoverage")
+			.withOptionKey("sweep-min-coverage").labelled("Minimum coverages")
+			.describedAs("Comma separated list of minimum coverages").inGroup(sweepGroup).defaultsTo("10,20,50")
+			.optional().done();
+
+	public final StringKey sweepMinFrequency = Keys.newStringKey(this, "sweepMinFrequency")
+			.withOptionKey("sweep-min-frequency").labelled("Minimum frequencies")
+			.describedAs("Comma separated list of minimum frequencies").inGroup(sweepGroup)
+			.defaultsTo("0.05,0.1,0.2").optional().done();
+
 	public final BooleanKey createReport = Keys.newBooleanKey(this, "createReport").defaultsTo(true)
 			.withOptionKey("create-report").labelled("Create report").describedAs("Create a report")
 			.inGroup(ParameterGroup.OUTPUT_OPTIONS).done();
@@ -206,15 +281,24 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 					return useQualityFilter.get();
 				}
 				if (key == trimLinkerList) {
-					return !trimPrimers.get().equals(PrimerMode.IGNORE);
+					return trimPrimers.get() == PrimerMode.REMOVE;
 				}
 				if (key == minCoverageExtend) {
 					return extendStartEnd.get();
 				}
 
-				if (key == minBreakpoint) {
+				if (key == minBreakpoint || key == assemblyFlank) {
 					return inDelResolution.get();
 				}
+				if (key == pileupSnapshotFolder) {
+					return pileupSnapshot.get() != SnapshotMode.OFF;
+				}
+				if (key == lowMemory) {
+					return pileupSnapshot.get() == SnapshotMode.OFF && !sweep.get();
+				}
+				if (key == sweepMinCoverage || key == sweepMinFrequency) {
+					return sweep.get();
+				}
 				return true;
 			}
 
@@ -227,6 +311,22 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 				if (trimPrimers.get() == PrimerMode.REMOVE && trimLinkerList.getClcObject(applicationContext) == null) {
 					handler.postMissingParameter(trimLinkerList);
 				}
+				if (trimPrimers.get() == PrimerMode.SCHEME && primerScheme.get().trim().isEmpty()) {
+					handler.postMissingParameter(primerScheme);
+				}
+				if (pileupSnapshot.get() != SnapshotMode.OFF && pileupSnapshotFolder.get().trim().isEmpty()) {
+					handler.postMissingParameter(pileupSnapshotFolder);
+				}
+				if (sweep.get()) {
+					try {
+						getSweepMinCoverages();
+						getSweepMinFrequencies();
+					} catch (final NumberFormatException e) {
+						handler.postInconsistentParameters(
+								"Sweep values should be comma separated coverages (1 or more) and frequencies (0 - 1)",
+								sweepMinCoverage, sweepMinFrequency);
+					}
+				}
 			}
 		};
 	}
@@ -234,9 +334,45 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 	public ConsensusInterpreter(final AlgoParameters parameters) {
 		super(parameters);
 		keys = new KeyContainer(minCoverage, addConflictAnnotations, conflictResolution, minFrequency, extendStartEnd,
-				minCoverageExtend, trimPrimers, trimLinkerList, inDelResolution, minBreakpoint, ignoreBrokenPairs,
-				ignoreNonSpecificMatches, minimumIgnoreReadLength, useQualityFilter, qualityMinCentral,
-				qualityMinRegion, qualityRadius, createReport);
+				minCoverageExtend, trimPrimers, trimLinkerList, primerScheme, inDelResolution, minBreakpoint,
+				assemblyFlank, ignoreBrokenPairs, ignoreNonSpecificMatches, minimumIgnoreReadLength, useQualityFilter,
+				qualityMinCentral, qualityMinRegion, qualityRadius, lowMemory, pileupSnapshot, pileupSnapshotFolder,
+				sweep, sweepMinCoverage, sweepMinFrequency, createReport);
+	}
+
+	/**
+	 * @throws NumberFormatException when the list contains a value that is not a coverage of at least 1
+	 */
+	public int[] getSweepMinCoverages() {
+		final int[] values = Arrays.stream(splitValues(sweepMinCoverage.get())).mapToInt(Integer::parseInt).toArray();
+		for (final int value : values) {
+			if (value < 1) {
+				throw new NumberFormatException("Minimum coverage should be at least 1: " + value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @throws NumberFormatException when the list contains a value that is not a frequency in (0, 1]
+	 */
+	public double[] getSweepMinFrequencies() {
+		final double[] values = Arrays.stream(splitValues(sweepMinFrequency.get())).mapToDouble(Double::parseDouble)
+				.toArray();
+		for (final double value : values) {
+			if (!(value > 0.0 && value <= 1.0)) {
+				throw new NumberFormatException("Minimum frequency should be between 0 and 1: " + value);
+			}
+		}
+		return values;
+	}
+
+	private static String[] splitValues(String values) {
+		final String trimmed = values == null ? "" : values.trim();
+		if (trimmed.isEmpty()) {
+			throw new NumberFormatException("No values");
+		}
+		return trimmed.split("\\s*,\\s*");
 	}
 
 	@Override
@@ -296,8 +432,19 @@ public class ConsensusInterpreter extends AlgoParametersInterpreter {
 			ignored.add(qualityRadius);
 		}
 
+		if (primerScheme.get().trim().isEmpty()) {
+			ignored.add(primerScheme);
+		}
 		if (!inDelResolution.get()) {
 			ignored.add(minBreakpoint);
+			ignored.add(assemblyFlank);
+		}
+		if (pileupSnapshot.get() == SnapshotMode.OFF) {
+			ignored.add(pileupSnapshotFolder);
+		}
+		if (!sweep.get()) {
+			ignored.add(sweepMinCoverage);
+			ignored.add(sweepMinFrequency);
 		}
 		return ignored;
 	}
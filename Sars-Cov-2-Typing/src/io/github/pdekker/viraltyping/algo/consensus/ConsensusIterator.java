@@ -1,11 +1,13 @@
 package io.github.pdekker.viraltyping.algo.consensus;
 
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import com.clcbio.api.base.math.FrequencyDistribution;
 import com.clcbio.api.base.process.Activity;
-import com.clcbio.api.base.process.NullActivity;
 import com.clcbio.api.free.datatypes.bioinformatics.sequence.symbol.SymbolSource;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.LocalCursor;
 import com.clcbio.api.free.datatypes.bioinformatics.sequencecluster.MatchIntersection;
@@ -23,7 +25,8 @@ import io.github.pdekker.viraltyping.algo.consensus.ConsensusBuilder.BuilderSess
 
 class ConsensusIterator extends AbstractMatchListIterator {
 
-	private final static int MAX_UNALIGNED_END = 5;
+	private final static int MIN_CHUNK_SIZE = 1_000;
+	private final static int CHUNKS_PER_THREAD = 2;
 
 	private static MatchListIteratorParameters getMatchListIteratorParameters(final ConsensusInterpreter par) {
 		return new MatchListIteratorParameters() {
@@ -58,16 +61,20 @@ class ConsensusIterator extends AbstractMatchListIterator {
 
 	private final ConsensusBuilder builder;
 	private BuilderSession session;
+	private PileupProgress.Counter counter;
 	private final PositionFilter overlapFilter;
 	private final PositionFilter qualityFilter;
+	private final PositionFilter primerFilter;
 	private final int mainLength;
 	private final double minBreakPointRatio;
 
-	private final Map<Integer, int[]> unalignedSequencesFor = new TreeMap<Integer, int[]>();
-	private final Map<Integer, int[]> unalignedSequencesRev = new TreeMap<Integer, int[]>();
+	private final UnalignedEndPileup unalignedEnds = new UnalignedEndPileup();
 
+	/**
+	 * @param primers primers of the reference that are masked in the reads, null when primers are not masked
+	 */
 	ConsensusIterator(final ConsensusBuilder builder, final MatchList matchList, final SymbolSource symbolSource,
-			final ConsensusInterpreter parms) {
+			final ConsensusInterpreter parms, final PrimerScheme.Index primers) {
 		super(matchList, symbolSource, 1, false, getMatchListIteratorParameters(parms));
 		this.builder = builder;
 		this.matchList = matchList;
@@ -78,301 +85,288 @@ class ConsensusIterator extends AbstractMatchListIterator {
 		} else {
 			this.qualityFilter = PositionFilter.createDummyFilter(parms);
 		}
+		this.primerFilter = primers == null ? PositionFilter.createDummyFilter(parms)
+				: PositionFilter.createPrimerFilter(primers);
 		this.minBreakPointRatio = parms.inDelResolution.get() ? parms.minBreakpoint.get() : 2.0; // ratio of 2.0 is
 																									// impossible so we
 																									// won't call
 																									// breakpoints...
 	}
 
-	int searchStart() {
-		if (matchList.isCircular()) {
-			return 0;
+	/**
+	 * Result of extending one end of the reference: the position where the iteration over the reference starts (or
+	 * ends) and the session with the positions added beyond the reference.
+	 */
+	static final class Extension {
+		final int mainPosition;
+		final int added;
+		private final BuilderSession session;
+
+		private Extension(int mainPosition, BuilderSession session) {
+			this.mainPosition = mainPosition;
+			this.added = session == null ? 0 : session.size();
+			this.session = session;
 		}
-		final MatchListSession session = MatchListSession.forMatchList(matchList);
-		final MatchIntersection intersection = MatchListIntersections.mainRange(session, 0, 1);
-		final FrequencyDistribution fd = new FrequencyDistribution();
 
-		while (intersection.findChild(UnalignedEnds.INCLUDE)) {
-			final int pos = intersection.currentChild().getMainStartPosition();
-			fd.add(pos);
+		/**
+		 * Adds the extended positions to the builder, a streaming builder needs this to be done in position order.
+		 */
+		void addTo(ConsensusBuilder builder) {
+			if (session != null) {
+				builder.add(session);
+			}
 		}
-		final Long l = fd.getMode();
-		return l == null ? 0 : l.intValue();
 	}
 
-	int searchEnd() {
-		if (matchList.isCircular()) {
-			return matchList.getMainSequenceLength();
+	/**
+	 * A read at one end of the reference, its cursor is kept for the pass over the reads after the intersection.
+	 */
+	private static final class EndRead {
+		private final LocalCursor cursor;
+		private final int mainStart;
+		private final int mainEnd;
+
+		private EndRead(LocalCursor cursor, int mainStart, int mainEnd) {
+			this.cursor = cursor;
+			this.mainStart = mainStart;
+			this.mainEnd = mainEnd;
 		}
-		final FrequencyDistribution fd = new FrequencyDistribution();
-		final MatchListSession session = MatchListSession.forMatchList(matchList);
-		final int len = matchList.getMainSequenceLength() - 1;
-		final MatchIntersection intersection = MatchListIntersections.mainRange(session, len, len + 1);
-		while (intersection.findChild(UnalignedEnds.INCLUDE)) {
-			final int pos = intersection.currentChild().getMainEndPosition();
-			fd.add(pos);
-		}
-		final Long l = fd.getMode();
-		return l == null ? matchList.getMainSequenceLength() : l.intValue();
 	}
 
-	int fixStart(int mainPos) {
+	/**
+	 * Handles the start of the reference in one traversal of the reads covering the first position. The traversal
+	 * collects the most common start position of these reads, the iteration over the reference starts there. The
+	 * reads covering that position are then piled up before it, the positions with enough coverage that connect to it
+	 * become the extension session. When the reads start after the first position the session also covers the
+	 * reference positions before the most common start.
+	 */
+	Extension extendStart() {
 		if (matchList.isCircular()) {
-			return 0;
+			return new Extension(0, null);
 		}
-		clear();
+		final FrequencyDistribution fd = new FrequencyDistribution();
+		final List<EndRead> reads = new ArrayList<>();
 		final MatchListSession session = MatchListSession.forMatchList(matchList);
-		final MatchIntersection intersection = MatchListIntersections.mainRange(session, mainPos, mainPos + 1);
-		int lowestPos = 0;
+		final MatchIntersection intersection = MatchListIntersections.mainRange(session, 0, 1);
 
 		while (intersection.findChild(UnalignedEnds.INCLUDE)) {
-			final LocalCursor cursor = intersection.currentChildLocalCursor(UnalignedEnds.INCLUDE);
-			final Map<Integer, int[]> map = cursor.matchIsReversed() ? unalignedSequencesRev : unalignedSequencesFor;
-			cursor.moveToMain(mainPos);
-			int pos = mainPos;
+			final int start = intersection.currentChild().getMainStartPosition();
+			fd.add(start);
+			reads.add(new EndRead(intersection.currentChildLocalCursor(UnalignedEnds.INCLUDE), start,
+					intersection.currentChild().getMainEndPosition()));
+		}
+		final Long mode = fd.getMode();
+		final int mainStart = mode == null ? 0 : mode.intValue();
+
+		unalignedEnds.reset(mainStart, -1);
+		for (final EndRead read : reads) {
+			if (read.mainEnd <= mainStart) {
+				// the read doesn't reach the most common start
+				continue;
+			}
+			final LocalCursor cursor = read.cursor;
+			final boolean reverse = cursor.matchIsReversed();
+			cursor.moveToMain(mainStart);
+			int offset = 0;
 			while (cursor.prev()) {
-				pos--;
-				byte sym = cursor.matchSymbol();
-				if (!map.containsKey(pos)) {
-					map.put(pos, new int[6]);
-				}
-				final int[] counts = map.get(pos);
-				if (sym > 4) {
-					sym = 4;
-				}
-				counts[sym + 1]++;
-				if (lowestPos > pos) {
-					lowestPos = pos;
-				}
+				unalignedEnds.increment(++offset, cursor.matchSymbol(), reverse);
 			}
 		}
+
 		int startPos = 0;
-		for (int i = lowestPos; i < mainPos; i++) {
-			int[] countsFor = unalignedSequencesFor.get(i);
-			if (countsFor == null) {
-				countsFor = new int[6];
-			}
-			int[] countsRev = unalignedSequencesRev.get(i);
-			if (countsRev == null) {
-				countsRev = new int[6];
-			}
-			if (getMaxCoverage(countsFor, countsRev) >= builder.getMinCoverageExtend()) {
+		for (int offset = unalignedEnds.length(); offset > 0; offset--) {
+			if (unalignedEnds.getMaxCount(offset) >= builder.getMinCoverageExtend()) {
 				if (startPos == 0) {
-					startPos = i;
+					startPos = unalignedEnds.getPosition(offset);
 				}
 			} else {
 				startPos = 0;
 			}
 		}
 
-		if (startPos < mainPos) {
-			final BuilderSession bs = builder.createSession(startPos, mainPos, NullActivity.INSTANCE);
-			for (int i = startPos; i < mainPos; i++) {
-				int[] countsFor = unalignedSequencesFor.get(i);
-				if (countsFor == null) {
-					countsFor = new int[6];
-				}
-				int[] countsRev = unalignedSequencesRev.get(i);
-				if (countsRev == null) {
-					countsRev = new int[6];
-				}
-				bs.add(i, countsFor, countsRev, false, false);
+		if (startPos < mainStart) {
+			final BuilderSession bs = builder.createSession(startPos, mainStart);
+			for (int offset = mainStart - startPos; offset > 0; offset--) {
+				unalignedEnds.copyTo(offset, bs.store);
 			}
-			builder.add(bs);
-			return bs.rows.size();
+			return new Extension(mainStart, bs);
 		}
-		return 0;
+		return new Extension(mainStart, null);
 	}
 
-	private void clear() {
-		unalignedSequencesFor.clear();
-		unalignedSequencesRev.clear();
-
-	}
-
-	int fixEnd(int mainEnd) {
+	/**
+	 * Same as {@link #extendStart()} for the end of the reference, the main position is the most common end of the
+	 * reads covering the last position and the exclusive end of the iteration.
+	 */
+	Extension extendEnd() {
 		if (matchList.isCircular()) {
-			return 0;
+			return new Extension(mainLength, null);
 		}
-		clear();
+		final FrequencyDistribution fd = new FrequencyDistribution();
+		final List<EndRead> reads = new ArrayList<>();
 		final MatchListSession session = MatchListSession.forMatchList(matchList);
-		final int len = mainEnd - 1;
-		final MatchIntersection intersection = MatchListIntersections.mainRange(session, len, len + 1);
-		int highestPos = len;
+		final MatchIntersection intersection = MatchListIntersections.mainRange(session, mainLength - 1,
+				mainLength);
 		while (intersection.findChild(UnalignedEnds.INCLUDE)) {
-			final LocalCursor cursor = intersection.currentChildLocalCursor(UnalignedEnds.INCLUDE);
-			final Map<Integer, int[]> map = cursor.matchIsReversed() ? unalignedSequencesRev : unalignedSequencesFor;
+			final int end = intersection.currentChild().getMainEndPosition();
+			fd.add(end);
+			reads.add(new EndRead(intersection.currentChildLocalCursor(UnalignedEnds.INCLUDE),
+					intersection.currentChild().getMainStartPosition(), end));
+		}
+		final Long mode = fd.getMode();
+		final int mainEnd = mode == null ? mainLength : mode.intValue();
+
+		final int len = mainEnd - 1;
+		unalignedEnds.reset(len, 1);
+		for (final EndRead read : reads) {
+			if (read.mainStart > len) {
+				// the read doesn't reach the most common end
+				continue;
+			}
+			final LocalCursor cursor = read.cursor;
+			final boolean reverse = cursor.matchIsReversed();
 			cursor.moveToMain(len);
-			int pos = len;
+			int offset = 0;
 			while (cursor.next()) {
-				pos++;
-				byte sym = cursor.matchSymbol();
-				if (!map.containsKey(pos)) {
-					map.put(pos, new int[6]);
-				}
-				final int[] counts = map.get(pos);
-				if (sym > 4) {
-					sym = 4;
-				}
-				counts[sym + 1]++;
-				if (highestPos < pos) {
-					highestPos = pos;
-				}
+				unalignedEnds.increment(++offset, cursor.matchSymbol(), reverse);
 			}
 		}
+
 		int endPos = len;
-		for (int i = highestPos; i > len; i--) {
-			int[] countsFor = unalignedSequencesFor.get(i);
-			if (countsFor == null) {
-				countsFor = new int[6];
-			}
-			int[] countsRev = unalignedSequencesRev.get(i);
-			if (countsRev == null) {
-				countsRev = new int[6];
-			}
-			if (getMaxCoverage(countsFor, countsRev) >= builder.getMinCoverageExtend()) {
+		for (int offset = unalignedEnds.length(); offset > 0; offset--) {
+			if (unalignedEnds.getMaxCount(offset) >= builder.getMinCoverageExtend()) {
 				if (endPos == len) {
-					endPos = i;
+					endPos = unalignedEnds.getPosition(offset);
 				}
 			} else {
 				endPos = len;
 			}
-
 		}
 
 		if (endPos > len) {
-			final BuilderSession bs = builder.createSession(mainEnd, endPos, NullActivity.INSTANCE);
-			for (int i = len + 1; i < endPos; i++) {
-				int[] countsFor = unalignedSequencesFor.get(i);
-				if (countsFor == null) {
-					countsFor = new int[6];
-				}
-				int[] countsRev = unalignedSequencesRev.get(i);
-				if (countsRev == null) {
-					countsRev = new int[6];
-				}
-				bs.add(i, countsFor, countsRev, false, false);
+			final BuilderSession bs = builder.createSession(mainEnd, endPos);
+			for (int offset = 1; offset < endPos - len; offset++) {
+				unalignedEnds.copyTo(offset, bs.store);
 			}
-			builder.add(bs);
-			return bs.rows.size();
+			return new Extension(mainEnd, bs);
 		}
-		return 0;
+		return new Extension(mainEnd, null);
 	}
 
-	private static int getMaxCoverage(int[] forCount, int[] revCount) {
-		int max = 0;
-		for (int i = 0; i < 6; i++) {
-			max = Math.max(forCount[i] + revCount[i], max);
+	/**
+	 * Iterates the range [start, end) in chunks, every chunk is handled by its own iterator (and so its own match list
+	 * session) and results in its own {@link BuilderSession}. The builder keeps the sessions in position order. Every
+	 * position is handled by exactly one chunk, so reads spanning a chunk boundary are counted once per position.
+	 * Insertions after the last position of a chunk belong to that chunk. When called from a {@link ForkJoinPool}
+	 * the chunks are run in parallel on that pool. A streaming builder needs the rows in order and is iterated in one
+	 * chunk. The chunks share one {@link PileupProgress}, so the progress covers the whole range and a stop by the
+	 * user ends all chunks.
+	 */
+	static void iterateInChunks(final ConsensusBuilder builder, final MatchList matchList,
+			final SymbolSource symbolSource, final ConsensusInterpreter parms, final PrimerScheme.Index primers,
+			final int start, final int end, final boolean skipLastInsert, final Activity activity)
+			throws InterruptedException {
+		final PileupProgress progress = new PileupProgress(activity, end - start);
+		try {
+			iterateInChunks(builder, matchList, symbolSource, parms, primers, start, end, skipLastInsert, progress);
+		} catch (final CancellationException e) {
+			progress.checkStop();
+			throw e;
+		}
+		progress.checkStop();
+	}
+
+	private static void iterateInChunks(final ConsensusBuilder builder, final MatchList matchList,
+			final SymbolSource symbolSource, final ConsensusInterpreter parms, final PrimerScheme.Index primers,
+			final int start, final int end, final boolean skipLastInsert, final PileupProgress progress) {
+		final ForkJoinPool pool = ForkJoinTask.getPool();
+		final int threads = pool == null ? 1 : pool.getParallelism();
+		final int length = end - start;
+		final int chunks = builder.isStreaming() ? 1
+				: Math.max(1, Math.min(threads * CHUNKS_PER_THREAD, length / MIN_CHUNK_SIZE));
+		if (chunks == 1) {
+			new ConsensusIterator(builder, matchList, symbolSource, parms, primers).iterate(start, end, skipLastInsert,
+					progress);
+			return;
+		}
+		final int chunkSize = (length + chunks - 1) / chunks;
+		final List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+		for (int chunkStart = start; chunkStart < end; chunkStart += chunkSize) {
+			final int from = chunkStart;
+			final int to = Math.min(end, chunkStart + chunkSize);
+			final boolean skip = to == end ? skipLastInsert : false;
+			tasks.add(ForkJoinTask.adapt(() -> new ConsensusIterator(builder, matchList, symbolSource, parms, primers)
+					.iterate(from, to, skip, progress)));
 		}
-		return max;
+		ForkJoinTask.invokeAll(tasks);
 	}
 
 	@Override
 	public void iterate(final int start, final int end, final boolean skipLastInsert, final Activity activity) {
-		session = builder.createSession(start, end, activity);
-		// activity is not used by iterate function so the builder will
-		// take care of it..
-		super.iterate(start, end, skipLastInsert, activity);
+		iterate(start, end, skipLastInsert, new PileupProgress(activity, end - start));
+	}
+
+	private void iterate(final int start, final int end, final boolean skipLastInsert,
+			final PileupProgress progress) {
+		session = builder.createStreamingSession(start, end);
+		counter = progress.createCounter();
+		// activity is not used by iterate function, the progress is reported by the position handler
+		super.iterate(start, end, skipLastInsert, progress.getActivity());
+		builder.addPrimerFallbacks(primerFilter.getFallbackCount());
 		builder.add(session);
 	}
 
 	@Override
 	protected PositionHandler createPositionHandler() {
 		return new PositionHandler() {
-			private int position;
-
-			private int[] symbolForCounts;
-			private int[] symbolRevCounts;
-			private int rightBreakPoint;
-			private int leftBreakPoint;
+			private final PileupColumn column = new PileupColumn(ConsensusIterator.this.mainLength,
+					minBreakPointRatio);
+			private int row;
 
 			@Override
 			public void init(final int position, final int subPosition, final int maxInsert, final byte mainSymbol) {
-				this.position = position;
+				this.row = session.addRow(position);
+				if (subPosition == 0) {
+					counter.step();
+				}
+				overlapFilter.startPosition(position);
+				qualityFilter.startPosition(position);
+				primerFilter.startPosition(position);
 
-				symbolForCounts = new int[6]; // 0 -> gap 1,2,3,4 -> symbol, 5
-												// -> N
-				symbolRevCounts = new int[6];
-				rightBreakPoint = 0;
-				leftBreakPoint = 0;
+				column.start(session.store, row, position);
 			}
 
 			@Override
 			public void handleMatch(final PositionInfo info, final int round) {
 				overlapFilter.filterInfo(info);
 				qualityFilter.filterInfo(info);
+				primerFilter.filterInfo(info);
 
 				if (info.getAlternativeSymbol1() == -2) {
 					return;
 				}
-
-				if (info.isUnalignedEndAfterPosition()) {
-					final int readPos = info.getReadPosition();
-					final int readLen = info.getSegmentEnd();
-					final int unalignedLength = readLen - readPos;
-					if (unalignedLength > MAX_UNALIGNED_END
-							&& position + unalignedLength < ConsensusIterator.this.mainLength - MAX_UNALIGNED_END) {
-						rightBreakPoint++;
-					}
-				}
-
-				if (info.isUnalignedEndBeforePosition()) {
-					final int readPos = info.getReadPosition();
-					final int unalignedLength = readPos - info.getSegmentStart();
-					if (unalignedLength > MAX_UNALIGNED_END && position - unalignedLength > MAX_UNALIGNED_END) {
-						leftBreakPoint++;
-					}
-				}
-
-				final byte forwardSymbol = info.getAlternativeSymbol2();
-				if (0 <= forwardSymbol && forwardSymbol < 4) {
-					if (info.isReverse()) {
-						symbolRevCounts[forwardSymbol + 1]++;
-					} else {
-						symbolForCounts[forwardSymbol + 1]++;
-					}
-				} else {
-					if (info.isReverse()) {
-						symbolRevCounts[5]++;
-					} else {
-						symbolForCounts[5]++;
-					}
-				}
+				final int readPos = info.getReadPosition();
+				final int unalignedBefore = info.isUnalignedEndBeforePosition() ? readPos - info.getSegmentStart() : 0;
+				final int unalignedAfter = info.isUnalignedEndAfterPosition() ? info.getSegmentEnd() - readPos : 0;
+				column.addBase(info.getAlternativeSymbol2(), info.isReverse(), unalignedBefore, unalignedAfter);
 			}
 
 			@Override
 			public void handleDelete(final PositionInfo info, final int round) {
 				overlapFilter.filterInfo(info);
 				qualityFilter.filterInfo(info);
+				primerFilter.filterInfo(info);
 
 				if (info.getAlternativeSymbol1() == -2) {
 					return;
 				}
-				if (info.isReverse()) {
-					symbolRevCounts[0]++;
-				} else {
-					symbolForCounts[0]++;
-				}
+				column.addGap(info.isReverse());
 			}
 
 			@Override
 			public void done(final int round) {
-				final double ratioRight = (double) rightBreakPoint / getCoverage();
-				final boolean right = ratioRight > minBreakPointRatio;
-				final double ratioLeft = (double) leftBreakPoint / getCoverage();
-				final boolean left = ratioLeft > minBreakPointRatio;
-				session.add(position, symbolForCounts, symbolRevCounts, left, right);
-			}
-
-			private int getCoverage() {
-				int sum = 0;
-				for (final int n : symbolForCounts) {
-					sum += n;
-				}
-				for (final int n : symbolRevCounts) {
-					sum += n;
-				}
-				return sum;
+				column.finish();
+				session.rowDone(row);
 			}
 
 		};
@@ -1,9 +1,10 @@
 package io.github.pdekker.viraltyping.algo.consensus;
 
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
-import com.clcbio.api.base.math.FrequencyDistribution;
 import com.clcbio.api.base.math.misc.DoubleInt;
 import com.clcbio.api.base.util.CreateList;
 import com.clcbio.api.clc.algorithms.report.AbstractReportCalculator;
@@ -16,6 +17,7 @@ import com.clcbio.api.free.datatypes.report.Report;
 import com.clcbio.api.free.datatypes.report.ReportElement;
 
 import io.github.pdekker.viraltyping.algo.consensus.ConsensusBuilder.CoverageInformation;
+import io.github.pdekker.viraltyping.algo.consensus.ConsensusInterpreter.ConflictResolution;
 
 public class ConsensusReportBuilder extends AbstractReportCalculator {
 
@@ -23,32 +25,43 @@ public class ConsensusReportBuilder extends AbstractReportCalculator {
 
 	List<String[]> fragmentData = CreateList.of();
 	List<String[]> coverageData = CreateList.of();
+	private final DepthHistogram totalDepths = new DepthHistogram();
+	private int coverageCount = 0;
+	List<String[]> sweepData = CreateList.of();
+	List<String[]> ampliconData = CreateList.of();
+	List<String[]> ampliconSummaryData = CreateList.of();
 
 	public void addCoverageInformation(BasicSequence bs, CoverageInformation coverInfo) {
+		coverageData.add(asCoverageRow(bs.getName(), coverInfo.depths, coverInfo.lowCoverageRegions()));
+		totalDepths.merge(coverInfo.depths);
+		coverageCount++;
+	}
+
+	private static String[] asCoverageRow(String name, DepthHistogram depths, String lowCoverageRegions) {
 		final NumberFormat nf = NumberFormat.getNumberInstance();
 		nf.setMaximumFractionDigits(1);
 		nf.setGroupingUsed(false);
 
-		final FrequencyDistribution fd = coverInfo.fd;
-		final String name = bs.getName();
-		if (fd.isEmpty()) {
-			fd.add(0); // prevents "null" in report
-		}
-		final String[] row = new String[5];
+		final String[] row = new String[11];
 		row[0] = name;
-		row[1] = "" + fd.getMin();
-		row[2] = "" + fd.getMax();
-		row[3] = nf.format(fd.getAverage()) + " \u00B1 " + nf.format(fd.getStandardDeviation());
-		row[4] = coverInfo.lowCoverageRegions();
-
-		coverageData.add(row);
-
+		row[1] = "" + depths.getMin();
+		row[2] = "" + depths.getMax();
+		row[3] = nf.format(depths.getAverage()) + " \u00B1 " + nf.format(depths.getStandardDeviation());
+		row[4] = "" + depths.getMedian();
+		row[5] = "" + depths.getPercentile(0.1);
+		row[6] = "" + depths.getPercentile(0.9);
+		row[7] = nf.format(100.0 * depths.getBreadth(10));
+		row[8] = nf.format(100.0 * depths.getBreadth(30));
+		row[9] = nf.format(100.0 * depths.getBreadth(100));
+		row[10] = lowCoverageRegions;
+		return row;
 	}
 
-	public void addFragmentInformation( BasicSequence bs, DoubleInt extension, DoubleInt trimRegion) {
-		final String[] row = new String[7];
+	public void addFragmentInformation(BasicSequence bs, DoubleInt extension, DoubleInt trimRegion, NRunIndex nRuns) {
+		final String[] row = new String[8];
 		row[0] = bs.getName();
 		row[6] = "" + bs.getLength();
+		row[7] = nRuns.isEmpty() ? "-" : nRuns.getTotalLength() + " (" + nRuns.getRunCount() + " runs)";
 		row[5] = ConsensusBuilder.hasFailures(bs) ? "Yes" : "No";
 		if (extension == null) {
 			// no extension choosen
@@ -69,6 +82,58 @@ public class ConsensusReportBuilder extends AbstractReportCalculator {
 		fragmentData.add(row);
 	}
 
+	public void addSweepInformation(BasicSequence bs, int minCoverage, double minFrequency,
+			ConflictResolution conflictResolution, CoverageInformation coverInfo) {
+		final NumberFormat nf = NumberFormat.getNumberInstance();
+		nf.setMaximumFractionDigits(2);
+		nf.setGroupingUsed(false);
+
+		final int length = bs.getLength();
+		final String[] row = new String[8];
+		row[0] = bs.getName();
+		row[1] = "" + minCoverage;
+		row[2] = "" + minFrequency;
+		row[3] = conflictResolution.getShortName();
+		row[4] = "" + coverInfo.getUnknown();
+		row[5] = length == 0 ? "-" : nf.format(100.0 * coverInfo.getUnknown() / length);
+		row[6] = "" + coverInfo.conflicts;
+		row[7] = "" + coverInfo.getLowCoverageBreadth();
+		sweepData.add(row);
+	}
+
+	/**
+	 * Adds a row per amplicon and a summary row with the mean depth of all amplicons in scheme order.
+	 */
+	public void addAmpliconInformation(BasicSequence bs, CoverageInformation coverInfo) {
+		final AmpliconDepth depth = coverInfo.getAmpliconDepth();
+		if (depth == null) {
+			return;
+		}
+		final NumberFormat nf = NumberFormat.getNumberInstance();
+		nf.setMaximumFractionDigits(1);
+		nf.setGroupingUsed(false);
+
+		for (int a = 0; a < depth.size(); a++) {
+			final String[] row = new String[8];
+			row[0] = bs.getName();
+			row[1] = depth.getName(a);
+			row[2] = "" + (depth.getStart(a) + 1);
+			row[3] = "" + depth.getEnd(a);
+			row[4] = nf.format(depth.getMeanDepth(a));
+			row[5] = "" + depth.getMinDepth(a);
+			row[6] = nf.format(100.0 * depth.getBreadth(a));
+			row[7] = depth.isDropout(a) ? "Yes" : "No";
+			ampliconData.add(row);
+		}
+
+		final String[] row = new String[4];
+		row[0] = bs.getName();
+		row[1] = "" + depth.size();
+		row[2] = "" + depth.getDropoutCount();
+		row[3] = Arrays.stream(depth.getMeanDepths()).mapToObj(Integer::toString).collect(Collectors.joining(","));
+		ampliconSummaryData.add(row);
+	}
+
 	@Override
 	protected Report createReport(List<ReportElement> elements) throws InterruptedException {
 		return new SimpleReport(elements, null);
@@ -79,17 +144,44 @@ public class ConsensusReportBuilder extends AbstractReportCalculator {
 		final ReportCompositeElement rce1 = new ReportCompositeElement();
 		rce1.setCaption("Genome information");
 		final ReportTableElement tabel1 = asModel(fragmentData, "Name", "Extension left", "Extension right",
-				"Primer left", "Primer right", "Problematic regions", "Final length");
+				"Primer left", "Primer right", "Problematic regions", "Final length", "Unknown (N)");
 		rce1.addReportElement(tabel1);
 		elements.add(rce1);
 
 		final ReportCompositeElement rce2 = new ReportCompositeElement();
 		rce2.setCaption("Coverage information");
-		final ReportTableElement tabel2 = asModel(coverageData, "Name", "Min", "Max", "Mean \u00B1 StdDev",
-				"Low Coverage Regions");
+		final List<String[]> coverageRows = CreateList.of();
+		coverageRows.addAll(coverageData);
+		if (coverageCount > 1) {
+			// the depths of all sequences together
+			coverageRows.add(asCoverageRow("Total", totalDepths, "-"));
+		}
+		final ReportTableElement tabel2 = asModel(coverageRows, "Name", "Min", "Max", "Mean \u00B1 StdDev", "Median",
+				"P10", "P90", "\u2265 10x %", "\u2265 30x %", "\u2265 100x %", "Low Coverage Regions");
 		rce2.addReportElement(tabel2);
 		elements.add(rce2);
 
+		if (!sweepData.isEmpty()) {
+			final ReportCompositeElement rce3 = new ReportCompositeElement();
+			rce3.setCaption("Parameter sweep");
+			final ReportTableElement tabel3 = asModel(sweepData, "Name", "Min coverage", "Min frequency",
+					"Conflict resolution", "N", "N %", "Conflicts", "Low coverage breadth");
+			rce3.addReportElement(tabel3);
+			elements.add(rce3);
+		}
+
+		if (!ampliconSummaryData.isEmpty()) {
+			final ReportCompositeElement rce4 = new ReportCompositeElement();
+			rce4.setCaption("Amplicon information");
+			final ReportTableElement tabel4 = asModel(ampliconSummaryData, "Name", "Amplicons", "Dropouts",
+					"Mean depth per amplicon");
+			rce4.addReportElement(tabel4);
+			final ReportTableElement tabel5 = asModel(ampliconData, "Name", "Amplicon", "Start", "End", "Mean depth",
+					"Min depth", "Min coverage breadth %", "Dropout");
+			rce4.addReportElement(tabel5);
+			elements.add(rce4);
+		}
+
 		return elements;
 	}
 
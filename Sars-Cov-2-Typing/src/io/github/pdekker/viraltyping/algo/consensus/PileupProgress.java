@@ -0,0 +1,87 @@
+package io.github.pdekker.viraltyping.algo.consensus;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.clcbio.api.base.process.Activity;
+
+/**
+ * Progress and cancellation of the pileup of one reference, shared by all chunks that iterate it. Every iterator
+ * counts its positions in its own {@link Counter} and only adds them to the shared total once per batch. The clock is
+ * read once per batch as well and the activity is updated at most once per interval, by the thread that claims the
+ * update. When the user stops, every chunk leaves its iteration with a {@link CancellationException} at its next
+ * batch.
+ *
+ * @author pdekker
+ *
+ */
+final class PileupProgress {
+	private static final int BATCH = 1024;
+	private static final long UPDATE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private final Activity activity;
+	private final long total;
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong nextUpdate = new AtomicLong(System.nanoTime());
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param total number of reference positions that will be iterated
+	 */
+	PileupProgress(Activity activity, long total) {
+		this.activity = activity;
+		this.total = total;
+	}
+
+	Activity getActivity() {
+		return activity;
+	}
+
+	Counter createCounter() {
+		return new Counter();
+	}
+
+	private void advance(int positions) {
+		if (stopped) {
+			throw new CancellationException("Stopped by the user");
+		}
+		final long count = done.addAndGet(positions);
+		final long now = System.nanoTime();
+		final long next = nextUpdate.get();
+		if (now - next < 0 || !nextUpdate.compareAndSet(next, now + UPDATE_INTERVAL)) {
+			return;
+		}
+		activity.setProgress(total <= 0 ? 1.0 : Math.min(1.0, (double) count / total));
+		try {
+			activity.checkStop();
+		} catch (final InterruptedException e) {
+			stopped = true;
+			throw new CancellationException("Stopped by the user");
+		}
+	}
+
+	/**
+	 * @throws InterruptedException when the iteration was stopped by the user
+	 */
+	void checkStop() throws InterruptedException {
+		if (stopped) {
+			throw new InterruptedException("Stopped by the user");
+		}
+		activity.checkStop();
+	}
+
+	/**
+	 * Position counter of one iterator, not thread safe.
+	 */
+	final class Counter {
+		private int pending = 0;
+
+		void step() {
+			if (++pending == BATCH) {
+				advance(pending);
+				pending = 0;
+			}
+		}
+	}
+}
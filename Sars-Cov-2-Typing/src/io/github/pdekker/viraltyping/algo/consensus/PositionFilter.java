@@ -5,6 +5,21 @@ import com.clcbio.api.genomics.base.algo.variation.iterator.PositionInfo;
 public abstract class PositionFilter {
 	public abstract void filterInfo(PositionInfo info);
 
+	/**
+	 * Called before the reads of a new reference position (or insertion column after it) are filtered.
+	 */
+	public void startPosition(int position) {
+		// nothing by default
+	}
+
+	/**
+	 * @return the number of reads that were filtered without the state kept for the read, because the read could not
+	 *         be recognized
+	 */
+	public long getFallbackCount() {
+		return 0;
+	}
+
 	public static PositionFilter createOverlapFilter() {
 		return new PositionFilter() {
 
@@ -25,12 +40,25 @@ public abstract class PositionFilter {
 		final int minCentralQuality = p.qualityMinCentral.get();
 		final int minRegionQuality = p.qualityMinRegion.get();
 		final int regionRadius = p.qualityRadius.get();
+		// for small regions summing directly is faster than tracking the reads
+		final boolean prefixSums = regionRadius >= ActiveReads.MIN_PREFIX_SUM_RADIUS;
 
 		return new PositionFilter() {
+			private final ActiveReads reads = new ActiveReads();
+
+			@Override
+			public void startPosition(int position) {
+				if (prefixSums) {
+					reads.startPosition();
+				}
+			}
 
 			@Override
 			public void filterInfo(final PositionInfo info) {
 				final byte[] qualities = info.getQualities();
+				// every read is looked up in every column, else it isn't continued in the next one
+				final ActiveReads.Read read = prefixSums ? reads.get(qualities, info.getSegmentStart(),
+						info.getSegmentEnd(), info.isReverse(), info.getReadPosition()) : null;
 				int readPos = info.getReadOrientedPosition();
 				final int segStart = info.getSegmentStart();
 				final int segEnd = info.getSegmentEnd();
@@ -66,16 +94,68 @@ public abstract class PositionFilter {
 					start = segStart;
 				}
 				if (qualities != null) {
-					int totalQual = 0;
-					for (int i = start; i < end; i++) {
-						totalQual += qualities[i];
-					}
+					// the prefix sums over the read only pay off once the read continues in the next column
+					final int totalQual = read == null || !read.isContinued()
+							? ActiveReads.sumQualities(qualities, start, end)
+							: read.sumQualities(qualities, start, end);
 					if (totalQual / (end - start) < minRegionQuality) {
 						info.setAlternativeSymbol12((byte) -2);
 					}
 				}
 			}
+		};
+	}
+
+	/**
+	 * Masks the read bases inside the primer at the amplicon ends of the read. Unaligned (clipped) ends still count as
+	 * part of the read. The reference start of a read is taken in the first column the read is seen in, where no
+	 * indel of the read is passed yet. The end is estimated from the position in the read, it is exact at the last
+	 * aligned base, so only indels inside the right primer can shift it.
+	 */
+	public static PositionFilter createPrimerFilter(final PrimerScheme.Index primers) {
+		return new PositionFilter() {
+			private final ActiveReads reads = new ActiveReads();
+			private int position;
+			private long fallbacks = 0;
+
+			@Override
+			public void startPosition(int position) {
+				this.position = position;
+				reads.startPosition();
+			}
+
+			@Override
+			public void filterInfo(final PositionInfo info) {
+				final int readPos = info.getReadPosition();
+				final ActiveReads.Read read = reads.get(info.getQualities(), info.getSegmentStart(),
+						info.getSegmentEnd(), info.isReverse(), readPos);
+				final int readEnd = position + (info.getSegmentEnd() - readPos);
+				final boolean primer;
+				if (read == null) {
+					// fallback for reads without quality or sharing it: both primers are looked up for every base
+					fallbacks++;
+					primer = primers.isPrimer(position, position - (readPos - info.getSegmentStart()), readEnd);
+				} else {
+					if (!read.isContinued()) {
+						read.leftPrimerEnd = primers.getLeftPrimerEnd(position - (readPos - info.getSegmentStart()));
+						read.referenceEnd = Integer.MIN_VALUE;
+					}
+					if (readEnd != read.referenceEnd) {
+						// only changes after an indel
+						read.referenceEnd = readEnd;
+						read.rightPrimerStart = primers.getRightPrimerStart(readEnd);
+					}
+					primer = position < read.leftPrimerEnd || position >= read.rightPrimerStart;
+				}
+				if (primer) {
+					info.setAlternativeSymbol12((byte) -2);
+				}
+			}
 
+			@Override
+			public long getFallbackCount() {
+				return fallbacks;
+			}
 		};
 	}
 